@@ -0,0 +1,189 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+  Runs TrivialVthreadMicroBenchmark.java in forked JVMs with different collectors, each in
+  gc and nogc mode, and prints a table that relates the latency of the finish phase to the
+  GC pauses in that phase. The intention is to explain the "Slowdown of vthreads after GC"
+  observed in the benchmark.
+
+  $ cd vthreads/benchmark
+  $ java GCMatrixRunner.java [<vthreads|pthreads> [<thread cnt>]]
+
+  Defaults are vthreads and 100000. Further settings:
+
+    -Dcollectors=ParallelGC,G1GC,ZGC,SerialGC   collectors to run (-XX:+Use<name>)
+    -Dxmx=1200m -Dxmn=1g                        heap and young gen size (-Xmn is not
+                                                passed with ZGC)
+    -Dout=gc_matrix.txt                         file the table is written to
+    -Dtimeout=600                               seconds until a child is killed
+
+  The children are started with the java launcher of this JVM and with -Dgc_pauses=true
+  and -Dhalt=true, so a slow vm teardown does not count against the timeout. A child that
+  does not finish in time is killed and reported as timed out. The first of the 10
+  iterations is reported separately as warm-up, the other columns are over the remaining
+  iterations. Pause columns are per iteration. The finish pause columns cover the pauses
+  that started in the finish phase, the trigger column the pauses of the collections
+  triggerGC causes before it in gc mode.
+*/
+
+public class GCMatrixRunner {
+
+    public static final String BENCHMARK = "TrivialVthreadMicroBenchmark.java";
+    public static final String[] MODES = { "nogc", "gc" };
+
+    static final Pattern STARTED = Pattern.compile("All threads started in (\\d+) ms");
+    static final Pattern FINISHED = Pattern.compile("All threads finished in (\\d+) ms");
+    static final Pattern FINISH_PAUSES =
+        Pattern.compile("GC pauses in finish phase: (\\d+) pauses, (\\d+) ms total, (\\d+) ms max");
+    static final Pattern TRIGGER_PAUSES =
+        Pattern.compile("GC pauses in triggerGC phase: (\\d+) pauses, (\\d+) ms total, (\\d+) ms max");
+
+    static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws Exception {
+        String threads = args.length > 0 ? args[0] : "vthreads";
+        String threadCnt = args.length > 1 ? args[1] : "100000";
+        String[] collectors = System.getProperty("collectors", "ParallelGC,G1GC,ZGC,SerialGC").split(",");
+        long timeoutSeconds = Long.getLong("timeout", 600);
+
+        List<Result> results = new ArrayList<>();
+        for (String collector : collectors) {
+            for (String mode : MODES) {
+                results.add(runBenchmark(collector, threads, mode, threadCnt, timeoutSeconds));
+            }
+        }
+
+        List<String> table = formatTable(results);
+        table.forEach(OUT::println);
+        Path out = Path.of(System.getProperty("out", "gc_matrix.txt"));
+        Files.write(out, table);
+        OUT.println("Table written to " + out.toAbsolutePath());
+    }
+
+    // Measurements of one forked benchmark run
+    static class Result {
+        final String collector;
+        final String mode;
+        int exitCode;
+        boolean timedOut;
+        final List<Long> startedMs = new ArrayList<>();
+        final List<Long> finishedMs = new ArrayList<>();
+        final List<Long> pauseCount = new ArrayList<>();
+        final List<Long> pauseTotalMs = new ArrayList<>();
+        final List<Long> pauseMaxMs = new ArrayList<>();
+        final List<Long> triggerPauseTotalMs = new ArrayList<>();
+
+        Result(String collector, String mode) {
+            this.collector = collector;
+            this.mode = mode;
+        }
+    }
+
+    static Result runBenchmark(String collector, String threads, String mode, String threadCnt,
+                               long timeoutSeconds) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-XX:+Use" + collector);
+        cmd.add("-Xmx" + System.getProperty("xmx", "1200m"));
+        if (!collector.equals("ZGC")) {
+            cmd.add("-Xmn" + System.getProperty("xmn", "1g"));
+        }
+        cmd.add("-XX:CompileCommand=quiet");
+        cmd.add("-XX:CompileCommand=dontinline,*::*dontinline");
+        cmd.add("-Dgc_pauses=true");
+        cmd.add("-Dhalt=true");
+        cmd.add(BENCHMARK);
+        cmd.add(threads);
+        cmd.add(mode);
+        cmd.add(threadCnt);
+        OUT.println("$ " + String.join(" ", cmd));
+
+        Result result = new Result(collector, mode);
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        Thread reader = Thread.ofPlatform().start(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        OUT.println("  " + line);
+                        Matcher m;
+                        if ((m = STARTED.matcher(line)).find()) {
+                            result.startedMs.add(Long.parseLong(m.group(1)));
+                        } else if ((m = FINISHED.matcher(line)).find()) {
+                            result.finishedMs.add(Long.parseLong(m.group(1)));
+                        } else if ((m = FINISH_PAUSES.matcher(line)).find()) {
+                            result.pauseCount.add(Long.parseLong(m.group(1)));
+                            result.pauseTotalMs.add(Long.parseLong(m.group(2)));
+                            result.pauseMaxMs.add(Long.parseLong(m.group(3)));
+                        } else if ((m = TRIGGER_PAUSES.matcher(line)).find()) {
+                            result.triggerPauseTotalMs.add(Long.parseLong(m.group(2)));
+                        }
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            });
+        if (p.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+            result.exitCode = p.exitValue();
+        } else {
+            result.exitCode = p.destroyForcibly().waitFor();
+            result.timedOut = true;
+        }
+        // The lists are only read after the reader has terminated
+        reader.join();
+        return result;
+    }
+
+    static List<String> formatTable(List<Result> results) {
+        List<String> table = new ArrayList<>();
+        String format = "%-12s %-5s %10s %14s %14s %12s %16s %14s %18s";
+        table.add(String.format(format, "collector", "mode", "start med", "finish warmup",
+                                "finish median", "finish max", "pauses/iter med", "pause ms med",
+                                "trigger pause med"));
+        for (Result r : results) {
+            if (r.timedOut) {
+                table.add(String.format("%-12s %-5s timed out", r.collector, r.mode));
+                continue;
+            }
+            if (r.exitCode != 0 || r.finishedMs.size() < 2) {
+                table.add(String.format("%-12s %-5s failed (exit code %d)", r.collector, r.mode, r.exitCode));
+                continue;
+            }
+            table.add(String.format(format, r.collector, r.mode,
+                                    median(tail(r.startedMs)),
+                                    r.finishedMs.get(0),
+                                    median(tail(r.finishedMs)),
+                                    Collections.max(tail(r.finishedMs)),
+                                    median(tail(r.pauseCount)),
+                                    median(tail(r.pauseTotalMs)) + " (max " + max(tail(r.pauseMaxMs)) + ")",
+                                    median(tail(r.triggerPauseTotalMs))));
+        }
+        return table;
+    }
+
+    // All but the first (warm-up) iteration
+    static List<Long> tail(List<Long> values) {
+        return values.isEmpty() ? values : values.subList(1, values.size());
+    }
+
+    static String median(List<Long> values) {
+        if (values.isEmpty()) return "-";
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return Long.toString(sorted.get(sorted.size() / 2));
+    }
+
+    static String max(List<Long> values) {
+        return values.isEmpty() ? "-" : Long.toString(Collections.max(values));
+    }
+}
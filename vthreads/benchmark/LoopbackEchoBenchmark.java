@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+  Blocking I/O counterpart of TrivialVthreadMicroBenchmark.java. Instead of parking on
+  latches every task blocks in socket reads: it connects to an in-process echo server on
+  loopback and does request/response round trips.
+
+  $ ulimit -n 250000
+  $ java LoopbackEchoBenchmark.java <vthreads|pthreads|nio> <connection cnt>
+
+    vthreads   a virtual thread per connection with blocking java.net.Socket I/O. Blocked
+               reads are handed to the I/O poller of the virtual thread scheduler.
+    pthreads   a platform thread per connection with blocking java.net.Socket I/O
+    nio        -Dclient_selectors=<n> platform threads (default: available processors) that
+               multiplex the connections with a Selector. This is the baseline without a
+               thread per connection.
+
+  The echo server is the same for all three: -Dserver_selectors=<n> selector threads
+  (default: available processors) plus one acceptor thread per listening port.
+
+  Each iteration has two phases like TrivialVthreadMicroBenchmark. In the connect phase all
+  connections are established, the clients then wait on a latch. In the round trip phase
+  every connection sends -Drounds=<n> (default 100) messages of -Dmessage_size=<n> bytes
+  (default 64) and reads the echo of each before sending the next. The throughput and the
+  p50/p99/max round trip time are logged. The clients close with SO_LINGER 0 so that the
+  ephemeral ports are not kept in TIME_WAIT for the next iteration.
+
+  To keep shared state out of the measured loop every connection records its round trip
+  times in its own array of -Drounds longs. The arrays are merged into the histogram after
+  the phase, so they take <connection cnt> * <rounds> * 8 bytes of heap.
+
+  There are only about 28K ephemeral ports per destination address and port, so the server
+  listens on -Dports=<n> ports (default: one per 20000 connections).
+
+  Settings (system properties):
+
+    -Diterations=<n>   number of iterations (default 10)
+*/
+
+public class LoopbackEchoBenchmark {
+    // Test Configuration
+    public static String MODE = "vthreads";
+    public static int CONNECTION_CNT = 10_000;
+
+    public static final int ITERATIONS = Integer.getInteger("iterations", 10);
+    public static final int ROUNDS = Integer.getInteger("rounds", 100);
+    public static final int MESSAGE_SIZE = Integer.getInteger("message_size", 64);
+    public static final int SERVER_SELECTORS = Integer.getInteger("server_selectors",
+                                                                  Runtime.getRuntime().availableProcessors());
+    public static final int CLIENT_SELECTORS = Integer.getInteger("client_selectors",
+                                                                  Runtime.getRuntime().availableProcessors());
+
+    public static InetSocketAddress[] serverAddresses;
+
+    public static void main(String[] args) throws Exception {
+        // Process arguments
+        if (args.length != 2) {
+            log("Wrong number of arguments");
+            log("Usage: <vthreads|pthreads|nio> <connection cnt>");
+            System.exit(1);
+        }
+        int i = 0;
+        MODE = args[i++];
+        CONNECTION_CNT = Integer.parseInt(args[i++]);
+
+        int ports = Integer.getInteger("ports", (CONNECTION_CNT + 19_999) / 20_000);
+        serverAddresses = EchoServer.start(ports);
+        log("Mode: " + MODE + ", echo server on " + ports + " port(s) with " + SERVER_SELECTORS + " selector(s)");
+
+        for (int j = 0; j < ITERATIONS; j++) {
+            testEntry();
+        }
+    }
+
+    public static void testEntry() throws Exception {
+        Iteration it = new Iteration();
+
+        // Connect
+        long start = System.currentTimeMillis();
+        List<SocketChannel> channels = null;
+        switch (MODE) {
+        case "vthreads", "pthreads" -> {
+            Thread.Builder builder = MODE.equals("vthreads") ? Thread.ofVirtual() : Thread.ofPlatform();
+            for (int c = 0; c < CONNECTION_CNT; c++) {
+                int cc = c;
+                builder.start(() -> blockingClient(cc, it));
+            }
+        }
+        case "nio" -> channels = nioConnect(it);
+        default -> throw new IllegalArgumentException("Unknown mode: " + MODE);
+        }
+        await(it.connected);
+        long end = System.currentTimeMillis();
+        log("All " + (CONNECTION_CNT - it.failed.get()) + " connections established in " + (end - start) + " ms"
+            + (it.failed.get() > 0 ? " (" + it.failed.get() + " failed)" : ""));
+
+        // Round trips
+        if (channels != null) {
+            startNioClients(channels, it);
+        }
+        long startNanos = System.nanoTime();
+        it.start.countDown();
+        await(it.done);
+        long nanos = System.nanoTime() - startNanos;
+        Histogram rtt = it.mergeRtts();
+        long roundTrips = rtt.count();
+        log(String.format(Locale.ROOT, "%d round trips in %d ms (%.0f/s), rtt p50 %.1f us, p99 %.1f us, max %.1f us%s",
+                          roundTrips, nanos / 1_000_000, roundTrips * 1e9 / nanos,
+                          rtt.percentile(0.5) / 1e3, rtt.percentile(0.99) / 1e3, rtt.max() / 1e3,
+                          it.failed.get() > 0 ? " (" + it.failed.get() + " connections failed)" : ""));
+    }
+
+    static class Iteration {
+        final CountDownLatch connected = new CountDownLatch(CONNECTION_CNT);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(CONNECTION_CNT);
+        final AtomicInteger failed = new AtomicInteger();
+        // Round trip times in ns per connection, published by counting down done
+        final long[][] rtts = new long[CONNECTION_CNT][];
+
+        Histogram mergeRtts() {
+            Histogram rtt = new Histogram();
+            for (long[] connectionRtts : rtts) {
+                if (connectionRtts == null) continue;
+                for (long ns : connectionRtts) {
+                    rtt.record(ns);
+                }
+            }
+            return rtt;
+        }
+    }
+
+    static InetSocketAddress serverAddress(int connection) {
+        return serverAddresses[connection % serverAddresses.length];
+    }
+
+    static byte[] message() {
+        byte[] message = new byte[MESSAGE_SIZE];
+        for (int i = 0; i < MESSAGE_SIZE; i++) {
+            message[i] = (byte) i;
+        }
+        return message;
+    }
+
+    public static void blockingClient(int connection, Iteration it) {
+        boolean connected = false;
+        long[] rtts = new long[ROUNDS];
+        int rounds = 0;
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.setSoLinger(true, 0);
+            socket.connect(serverAddress(connection));
+            connected = true;
+            it.connected.countDown();
+            await(it.start);
+
+            byte[] message = message();
+            byte[] echo = new byte[MESSAGE_SIZE];
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            for (; rounds < ROUNDS; rounds++) {
+                long t0 = System.nanoTime();
+                out.write(message);
+                if (in.readNBytes(echo, 0, MESSAGE_SIZE) != MESSAGE_SIZE) {
+                    throw new IOException("Connection closed by server");
+                }
+                rtts[rounds] = System.nanoTime() - t0;
+            }
+        } catch (IOException e) {
+            if (it.failed.getAndIncrement() == 0) {
+                e.printStackTrace();
+            }
+            if (!connected) {
+                it.connected.countDown();
+            }
+        } finally {
+            it.rtts[connection] = rounds == ROUNDS ? rtts : Arrays.copyOf(rtts, rounds);
+            it.done.countDown();
+        }
+    }
+
+    // The nio client connects with blocking channels from the main thread
+    // The list has a null entry for every connection that failed.
+    static List<SocketChannel> nioConnect(Iteration it) {
+        List<SocketChannel> channels = new ArrayList<>(CONNECTION_CNT);
+        for (int c = 0; c < CONNECTION_CNT; c++) {
+            SocketChannel ch = null;
+            try {
+                ch = SocketChannel.open();
+                ch.socket().setTcpNoDelay(true);
+                ch.socket().setSoLinger(true, 0);
+                ch.connect(serverAddress(c));
+                ch.configureBlocking(false);
+            } catch (IOException e) {
+                if (it.failed.getAndIncrement() == 0) {
+                    e.printStackTrace();
+                }
+                it.done.countDown();
+                ch = null;
+            }
+            channels.add(ch);
+            it.connected.countDown();
+        }
+        return channels;
+    }
+
+    static void startNioClients(List<SocketChannel> channels, Iteration it) throws IOException {
+        for (int s = 0; s < CLIENT_SELECTORS; s++) {
+            List<NioConnection> mine = new ArrayList<>();
+            for (int c = s; c < channels.size(); c += CLIENT_SELECTORS) {
+                if (channels.get(c) != null) {
+                    mine.add(new NioConnection(c, channels.get(c)));
+                }
+            }
+            Selector selector = Selector.open();
+            Thread.ofPlatform().name("nio-client-" + s).start(() -> nioClient(selector, mine, it));
+        }
+    }
+
+    // State of one connection of the nio client
+    static class NioConnection {
+        final int connection;
+        final SocketChannel channel;
+        final ByteBuffer out = ByteBuffer.wrap(message());
+        final ByteBuffer in = ByteBuffer.allocate(MESSAGE_SIZE);
+        final long[] rtts = new long[ROUNDS];
+        int rounds;
+        long sentNanos;
+
+        NioConnection(int connection, SocketChannel channel) {
+            this.connection = connection;
+            this.channel = channel;
+        }
+    }
+
+    static void nioClient(Selector selector, List<NioConnection> connections, Iteration it) {
+        int open = connections.size();
+        try (selector) {
+            await(it.start);
+            for (NioConnection conn : connections) {
+                SelectionKey key = conn.channel.register(selector, 0, conn);
+                send(key, conn);
+            }
+            while (open > 0) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel ch = (SocketChannel) key.channel();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            send(key, conn);
+                            continue;
+                        }
+                        if (ch.read(conn.in) < 0) {
+                            throw new IOException("Connection closed by server");
+                        }
+                        if (conn.in.hasRemaining()) continue;
+                        conn.rtts[conn.rounds] = System.nanoTime() - conn.sentNanos;
+                        if (++conn.rounds < ROUNDS) {
+                            conn.in.clear();
+                            conn.out.clear();
+                            send(key, conn);
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        if (it.failed.getAndIncrement() == 0) {
+                            e.printStackTrace();
+                        }
+                    }
+                    key.cancel();
+                    ch.close();
+                    open--;
+                    it.rtts[conn.connection] = conn.rounds == ROUNDS ? conn.rtts : Arrays.copyOf(conn.rtts, conn.rounds);
+                    it.done.countDown();
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Writes the (rest of the) message and waits for the echo or for the channel to become writable
+    static void send(SelectionKey key, NioConnection conn) throws IOException {
+        if (conn.out.position() == 0) {
+            conn.sentNanos = System.nanoTime();
+        }
+        ((SocketChannel) key.channel()).write(conn.out);
+        key.interestOps(conn.out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    static class EchoServer {
+        static final List<EchoServer> loops = new ArrayList<>();
+
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+        EchoServer() throws IOException {
+            selector = Selector.open();
+        }
+
+        // Returns the addresses the server listens on
+        static InetSocketAddress[] start(int ports) throws IOException {
+            for (int s = 0; s < SERVER_SELECTORS; s++) {
+                EchoServer loop = new EchoServer();
+                loops.add(loop);
+                Thread.ofPlatform().daemon().name("echo-server-" + s).start(loop::run);
+            }
+            InetSocketAddress[] addresses = new InetSocketAddress[ports];
+            for (int p = 0; p < ports; p++) {
+                ServerSocketChannel server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 65535);
+                addresses[p] = (InetSocketAddress) server.getLocalAddress();
+                Thread.ofPlatform().daemon().name("echo-acceptor-" + p).start(() -> accept(server));
+            }
+            return addresses;
+        }
+
+        static void accept(ServerSocketChannel server) {
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel ch = server.accept();
+                    ch.socket().setTcpNoDelay(true);
+                    ch.configureBlocking(false);
+                    EchoServer loop = loops.get(next++ % loops.size());
+                    loop.accepted.add(ch);
+                    loop.selector.wakeup();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = accepted.poll()) != null) {
+                        ch.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(Math.max(MESSAGE_SIZE, 256)));
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        echo(key);
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Writes back what was read. If the client does not take all of it, waits until the
+        // channel is writable before reading more.
+        static void echo(SelectionKey key) {
+            SocketChannel ch = (SocketChannel) key.channel();
+            ByteBuffer buf = (ByteBuffer) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    if (ch.read(buf) < 0) {
+                        key.cancel();
+                        ch.close();
+                        return;
+                    }
+                }
+                buf.flip();
+                ch.write(buf);
+                buf.compact();
+                key.interestOps(buf.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            } catch (IOException e) {
+                // Clients reset their connections when they are done
+                key.cancel();
+                try {
+                    ch.close();
+                } catch (IOException e2) { /* Ignored */ }
+            }
+        }
+    }
+
+    // Log-linear histogram of round trip times in ns, 8 sub-buckets per power of 2.
+    // Only filled by the main thread after the round trip phase.
+    static class Histogram {
+        final long[] buckets = new long[64 * 8];
+        long max;
+
+        void record(long ns) {
+            buckets[index(ns)]++;
+            max = Math.max(max, ns);
+        }
+
+        long count() {
+            long n = 0;
+            for (long c : buckets) {
+                n += c;
+            }
+            return n;
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double p) {
+            long target = (long) Math.ceil(p * count());
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return 0;
+        }
+
+        static int index(long ns) {
+            if (ns < 8) return (int) ns;
+            int exp = 63 - Long.numberOfLeadingZeros(ns);
+            return (exp - 2) * 8 + (int) ((ns >>> (exp - 3)) & 7);
+        }
+
+        static long upperBound(int index) {
+            if (index < 8) return index;
+            int shift = index / 8 - 1;
+            return ((8L + index % 8) << shift) + (1L << shift) - 1;
+        }
+    }
+
+    static void log(String m) {
+        System.out.println(Thread.currentThread().getName() + ": " + m);
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,8 +1,35 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntToLongFunction;
 import java.util.stream.IntStream;
+import javax.management.JMException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 /*
   Very simple microbenchmark that exercises virtual and platform threads.
@@ -91,6 +118,133 @@ import java.util.stream.IntStream;
 
     - Test with 100K vthreads is faster than with 30K pthreads
     - Slowdown of vthreads after GC
+
+  Memory footprint of parked threads
+
+  With -Dfootprint=true the heap is sampled before the threads are started and again
+  when all of them are parked at the bottom of recMethod_dontinline. The depth of the
+  recursion can be set with -Drec_count=<n> (default 100). A sample is a class
+  histogram (which implies a full GC) and the used heap reported by the MemoryMXBean.
+
+  A stack chunk does not only hold the recMethod_dontinline frames but also a header and
+  the frames of threadEntry and of the release barrier down to park. To separate these
+  fixed costs, every iteration first starts and samples the threads with a recursion
+  depth of 0, so both samples are taken with the code in the same (warm) state. The fixed
+  bytes/thread of that calibration run are subtracted from the stack chunk bytes/thread
+  at the full depth before they are divided by the depth to get bytes/frame.
+
+  $ SETTINGS=(vthreads nogc 100000) ; \
+    java -Dfootprint=true -Drec_count=20 -XX:+UseParallelGC -Xmx1200m -Xmn1g \
+         -XX:CompileCommand=dontinline,*::*dontinline TrivialVthreadMicroBenchmark.java ${SETTINGS[@]}
+
+  Note that the stacks of platform threads are not on the heap, so for pthreads the
+  numbers only cover the Thread objects and what they reference. The full GCs of the
+  footprint sampling affect the finish phase just like the gc setting does.
+
+  GC pauses
+
+  With -Dgc_pauses=true the stop-the-world pauses reported by the GC MXBeans are
+  summed up per phase and logged after the phase. A pause belongs to the phase in which
+  it started (GcInfo start time in vm uptime), not to the one in which the asynchronous
+  notification arrives. Before a phase is logged the notifications of all collections
+  so far are awaited. In gc mode the collections of triggerGC between the phases are
+  logged as their own phase. GCMatrixRunner.java uses this to compare the finish phase
+  across collectors.
+
+  Spawn strategies
+
+  -Dspawn=<strategy> selects how the tasks are submitted in the start phase:
+
+    single     the main thread submits all tasks (default)
+    parallel   -Dsubmitters=<n> platform threads (default 4) each submit a slice of the tasks
+    batched    the main thread submits one task per -Dbatch=<n> tasks (default 100) which
+               submits the others of its batch before doing its own work
+    tree       the main thread submits a single task. Each task submits tasks for its
+               subrange split in -Dfanout=<n> parts (default 16) before doing its own work.
+               With virtual threads, tasks submitted from a virtual thread go to the local
+               queue of its carrier.
+
+  Barriers
+
+  -Dbarrier=<kind> selects what the parked threads wait on and how the main thread waits
+  for them to finish:
+
+    latch      a CountDownLatch(1) for the release and a CountDownLatch(THREAD_CNT) for
+               completion (default)
+    phaser     -Dstripes=<n> leaf Phasers (default 64) each with its share of the threads
+               registered. For the release the leaves are independent Phasers with their
+               own wait queues, linked as a binary tree: the main thread advances leaf 0 and
+               the first thread of leaf l advances leaves 2l+1 and 2l+2 once it is woken, so
+               the wake-ups are spread over the tree. For completion the leaves are attached
+               to a root Phaser on which only the main thread waits
+    striped    -Dstripes=<n> latches for release and completion, thread i uses stripe
+               i % n
+    counter    the release latch plus an AtomicInteger for completion. The thread that
+               counts down to zero unparks the main thread
+
+  With -Drelease_time=true also the time until the last thread has returned from the
+  release barrier is logged. It is off by default because every task then reads the
+  clock and updates a shared LongAccumulator in the measured finish phase.
+
+  Counters
+
+  recMethod_dontinline increments a counter in every frame. -Dcounter=<kind> selects it, to
+  measure the start and finish phases with and without contention on a shared cache line:
+
+    shared     the static volatile field dummy, incremented by all threads (default).
+               Updates can get lost, the increment is not atomic.
+    adder      a LongAdder
+    carrier    an AtomicLongArray with one slot per carrier thread, padded to 128 bytes.
+               Every platform thread is its own carrier, its slot is chosen by thread id.
+               Needs --add-opens java.base/java.lang=ALL-UNNAMED to find the carrier of a
+               virtual thread.
+    local      a ThreadLocal cell per thread that is added to a LongAdder when the thread
+               is done
+    none       no counting
+
+  The increment is not inlined (increment_dontinline) so that the frames of
+  recMethod_dontinline have the same size with every counter. Otherwise e.g. an inlined
+  ThreadLocal lookup makes them larger, and with them the stack chunks of the parked
+  virtual threads. The sum of the counter is logged at the end.
+
+  Platform thread pools
+
+  With pthreads -Dpool=<kind> selects the executor:
+
+    fixed        Executors.newFixedThreadPool(THREAD_CNT) (default). The threads are
+                 started lazily by the first submits.
+    prestarted   the same pool with all core threads started before the first iteration.
+                 The time for that is logged.
+    cached       Executors.newCachedThreadPool()
+    per_task     Executors.newThreadPerTaskExecutor() without pooling. The threads get a
+                 stack of -Dstack_size=<bytes> (default 256K for per_task)
+    bounded      a ThreadPoolExecutor with -Dpool_size=<n> threads (default: available
+                 processors) and a queue of -Dqueue_size=<n> tasks (default 1000). When the
+                 queue is full the submitting thread runs the task (CallerRunsPolicy).
+                 Only pool_size tasks can run at a time, so the tasks don't wait for the
+                 release. The start phase then includes running all of them to completion.
+
+  -Dstack_size=<bytes> sets the stack size of the threads of the other pools too
+  (default 0, the -Xss default).
+
+  Shutdown
+
+  After the last iteration the executor is shut down and the time until all its threads
+  have terminated (awaitTermination) is logged. -Dshutdown=now uses shutdownNow() instead
+  of shutdown(). With -Dhalt=true the vm is halted right after that, skipping the
+  teardown of the vm at exit.
+
+  Latency distributions
+
+  With -Dlatencies=true every task records System.nanoTime() when it is submitted, when it
+  starts running in threadEntry and when it is done, in an array preallocated for all
+  tasks. The three timestamps of a task are in a slot of 128 bytes of their own. As the
+  array is not aligned to cache lines, this keeps the timestamps of two tasks at least
+  104 bytes apart, so tasks on different carriers never write to the same 64 byte cache
+  line. After each iteration the percentiles (p50/p99/p99.9/max) of the time from submit
+  to the first run and of the time from the release to completion are logged (not with
+  the bounded pool, its tasks complete before the release). With the tree and batched
+  spawn strategies a task is submitted by the task that spawns its subrange.
 */
 
 public class TrivialVthreadMicroBenchmark {
@@ -104,14 +258,49 @@ public class TrivialVthreadMicroBenchmark {
 
     public static final long NEW_GEN_SIZE_BYTES = 1024 * M;
     public static final int TMP_ARRAY_SIZE_BYTES = 10_000;
-    public static final int REC_COUNT = 100;
+    public static final int REC_COUNT = Integer.getInteger("rec_count", 100);
+    public static final boolean MEASURE_FOOTPRINT = Boolean.getBoolean("footprint");
+    // Recursion depth of the current run, 0 in the footprint calibration run
+    public static int recDepth = REC_COUNT;
+    // Stack chunk bytes/thread at depth 0 in the current iteration, -1 if not calibrated
+    public static long fixedChunkBytesPerThread = -1;
+    public static final boolean LOG_GC_PAUSES = Boolean.getBoolean("gc_pauses");
+    public static final String SPAWN_STRATEGY = System.getProperty("spawn", "single");
+    public static final int SUBMITTER_CNT = Integer.getInteger("submitters", 4);
+    public static final int BATCH_SIZE = Integer.getInteger("batch", 100);
+    public static final int FANOUT = Integer.getInteger("fanout", 16);
+    public static final String BARRIER_KIND = System.getProperty("barrier", "latch");
+    public static final int STRIPE_CNT = Integer.getInteger("stripes", 64);
+    public static final String COUNTER_KIND = System.getProperty("counter", "shared");
+    public static final String POOL_KIND = System.getProperty("pool", "fixed");
+    public static final int POOL_SIZE = Integer.getInteger("pool_size", Runtime.getRuntime().availableProcessors());
+    public static final int QUEUE_SIZE = Integer.getInteger("queue_size", 1000);
+    public static final long STACK_SIZE = Long.getLong("stack_size", POOL_KIND.equals("per_task") ? 256 * K : 0);
+    public static final boolean SHUTDOWN_NOW = System.getProperty("shutdown", "").equals("now");
+    public static final boolean HALT = Boolean.getBoolean("halt");
+    public static final boolean RECORD_LATENCIES = Boolean.getBoolean("latencies");
+    public static final boolean RECORD_RELEASE_TIME = Boolean.getBoolean("release_time");
+    // Tasks can only wait for the release if all of them run at the same time
+    public static boolean WAIT_FOR_RELEASE = true;
 
     // Use java.util.concurrent synchronization to avoid pinning
     public static CountDownLatch threadsStartedLatch;
-    public static CountDownLatch runToCompletionLatch;
-    public static CountDownLatch threadsDoneLatch;
+    public static Barrier barrier;
+    public static final Counter counter = newCounter();
+
+    // Per task timestamps for -Dlatencies=true
+    // Task t uses taskNanos[t * SLOT_LONGS + SUBMIT|START|DONE]
+    public static final int SLOT_LONGS = 16;
+    public static final int SUBMIT = 0;
+    public static final int START = 1;
+    public static final int DONE = 2;
+    public static long[] taskNanos;
+
+    // Latest time a thread returned from the release barrier for -Drelease_time=true
+    public static final LongAccumulator lastReleasedNanos = new LongAccumulator(Math::max, 0);
 
     public static ExecutorService executor;
+    public static GCPauseListener gcPauses;
 
     public static void main(String[] args) {
         // Process arguments
@@ -128,52 +317,223 @@ public class TrivialVthreadMicroBenchmark {
         // Create an executor service according to the arguments
         executor = USE_VTHREADS ?
             Executors.newVirtualThreadPerTaskExecutor() :
-            Executors.newFixedThreadPool(THREAD_CNT);
-        // very slow w/o pooling
-        //            Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+            newPlatformThreadExecutor();
+        WAIT_FOR_RELEASE = USE_VTHREADS || !POOL_KIND.equals("bounded");
+        if (RECORD_LATENCIES) {
+            taskNanos = new long[THREAD_CNT * SLOT_LONGS];
+        }
+
+        if (LOG_GC_PAUSES) {
+            gcPauses = GCPauseListener.install();
+        }
+        log("Spawn strategy: " + SPAWN_STRATEGY);
+        log("Barrier: " + BARRIER_KIND);
+        log("Counter: " + COUNTER_KIND);
 
         // Run the test a few times
         IntStream.range(0, 10).forEach(j -> testEntry());
         long start = System.currentTimeMillis();
-        executor.shutdown();
+        if (SHUTDOWN_NOW) {
+            executor.shutdownNow();
+        } else {
+            executor.shutdown();
+        }
         long end = System.currentTimeMillis();
         log("Shutdown in " + (end - start) + " ms");
+        awaitTermination();
+        end = System.currentTimeMillis();
+        log("Terminated in " + (end - start) + " ms");
+        long increments = 10L * THREAD_CNT * (REC_COUNT + 1) + (MEASURE_FOOTPRINT ? 10L * THREAD_CNT : 0);
+        log("Counter sum " + counter.sum() + " (" + increments + " increments)");
+        if (HALT) {
+            log("Halting");
+            Runtime.getRuntime().halt(0);
+        }
+    }
+
+    public static ExecutorService newPlatformThreadExecutor() {
+        ThreadFactory factory = Thread.ofPlatform().stackSize(STACK_SIZE).factory();
+        log("Pool: " + POOL_KIND + (STACK_SIZE > 0 ? ", stack size " + STACK_SIZE / K + "K" : ""));
+        return switch (POOL_KIND) {
+        case "fixed" -> Executors.newFixedThreadPool(THREAD_CNT, factory);
+        case "prestarted" -> {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(THREAD_CNT, factory);
+            long start = System.currentTimeMillis();
+            pool.prestartAllCoreThreads();
+            long end = System.currentTimeMillis();
+            log("Prestarted " + pool.getPoolSize() + " threads in " + (end - start) + " ms");
+            yield pool;
+        }
+        case "cached" -> Executors.newCachedThreadPool(factory);
+        case "per_task" -> Executors.newThreadPerTaskExecutor(factory);
+        case "bounded" -> new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0, TimeUnit.MILLISECONDS,
+                                                 new ArrayBlockingQueue<>(QUEUE_SIZE), factory,
+                                                 new ThreadPoolExecutor.CallerRunsPolicy());
+        default -> throw new IllegalArgumentException("Unknown pool: " + POOL_KIND);
+        };
+    }
+
+    public static void awaitTermination() {
+        try {
+            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log("Waiting for termination of the executor");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 
     public static void testEntry() {
+        if (MEASURE_FOOTPRINT) {
+            calibrateFootprint();
+        }
         threadsStartedLatch = new CountDownLatch(THREAD_CNT);
-        runToCompletionLatch = new CountDownLatch(1);
-        threadsDoneLatch = new CountDownLatch(THREAD_CNT);
+        barrier = newBarrier();
 
         // Cleanup heap before test run
         System.gc();
+        HeapSample heapBefore = MEASURE_FOOTPRINT ? HeapSample.take() : null;
 
         // Start threads
+        resetGCPauses();
+        long phaseStartMs = uptimeMs();
         long start = System.currentTimeMillis();
-        IntStream.range(0, THREAD_CNT).forEach(i -> executor.submit(() -> threadEntry(i)));
+        spawnThreads();
         await(threadsStartedLatch);
         long end = System.currentTimeMillis();
         log("All threads started in " + (end - start) + " ms");
+        logGCPauses("start", phaseStartMs);
+        if (RECORD_LATENCIES) {
+            logLatencies("Spawn latency (submit to first run)", t -> timestamp(t, START) - timestamp(t, SUBMIT));
+        }
+
+        if (MEASURE_FOOTPRINT) {
+            logFootprint(heapBefore, HeapSample.take());
+        }
 
         if (SHOULD_TRIGGER_GC) {
+            phaseStartMs = uptimeMs();
             triggerGC();
+            logGCPauses("triggerGC", phaseStartMs);
         }
 
         // Let threads run to completion
+        phaseStartMs = uptimeMs();
+        lastReleasedNanos.reset();
+        long releaseStart = System.nanoTime();
         start = System.currentTimeMillis();
-        runToCompletionLatch.countDown();
-        await(threadsDoneLatch);
+        barrier.release();
+        barrier.awaitDone();
         end = System.currentTimeMillis();
         log("All threads finished in " + (end - start) + " ms");
+        if (RECORD_RELEASE_TIME && WAIT_FOR_RELEASE) {
+            log("All threads released in " + (lastReleasedNanos.get() - releaseStart) / 1_000_000 + " ms");
+        }
+        logGCPauses("finish", phaseStartMs);
+        if (RECORD_LATENCIES && WAIT_FOR_RELEASE) {
+            logLatencies("Completion latency (release to done)", t -> timestamp(t, DONE) - releaseStart);
+        }
+    }
+
+    public static void spawnThreads() {
+        switch (SPAWN_STRATEGY) {
+        case "single" -> IntStream.range(0, THREAD_CNT).forEach(i -> {
+                submitted(i);
+                executor.submit(() -> threadEntry(i));
+            });
+        case "parallel" -> {
+            int slice = (THREAD_CNT + SUBMITTER_CNT - 1) / SUBMITTER_CNT;
+            Thread[] submitters = new Thread[SUBMITTER_CNT];
+            for (int s = 0; s < SUBMITTER_CNT; s++) {
+                int lo = s * slice;
+                int hi = Math.min(lo + slice, THREAD_CNT);
+                submitters[s] = Thread.ofPlatform().name("submitter-" + s).start(() -> {
+                    for (int i = lo; i < hi; i++) {
+                        final int ii = i;
+                        submitted(ii);
+                        executor.submit(() -> threadEntry(ii));
+                    }
+                });
+            }
+            for (Thread t : submitters) {
+                join(t);
+            }
+        }
+        case "batched" -> {
+            for (int lo = 0; lo < THREAD_CNT; lo += BATCH_SIZE) {
+                int blo = lo;
+                int bhi = Math.min(lo + BATCH_SIZE, THREAD_CNT);
+                // fanout covering the whole batch makes the batch task submit the others directly
+                submitted(blo);
+                executor.submit(() -> spawnTree(blo, bhi, BATCH_SIZE));
+            }
+        }
+        case "tree" -> {
+            submitted(0);
+            executor.submit(() -> spawnTree(0, THREAD_CNT, FANOUT));
+        }
+        default -> throw new IllegalArgumentException("Unknown spawn strategy: " + SPAWN_STRATEGY);
+        }
+    }
+
+    // Submits tasks for [lo + 1, hi) split into fanout subranges, then runs task lo
+    public static void spawnTree(int lo, int hi, int fanout) {
+        int rest = hi - (lo + 1);
+        if (rest > 0) {
+            int chunk = (rest + fanout - 1) / fanout;
+            for (int clo = lo + 1; clo < hi; clo += chunk) {
+                int cl = clo;
+                int ch = Math.min(clo + chunk, hi);
+                submitted(cl);
+                executor.submit(() -> spawnTree(cl, ch, fanout));
+            }
+        }
+        threadEntry(lo);
     }
 
     public static int threadEntry(int i) {
+        if (RECORD_LATENCIES) {
+            taskNanos[i * SLOT_LONGS + START] = System.nanoTime();
+        }
         threadsStartedLatch.countDown();
-        recMethod_dontinline(REC_COUNT);
-        threadsDoneLatch.countDown();
+        recMethod_dontinline(recDepth, i);
+        counter.flush();
+        if (RECORD_LATENCIES) {
+            taskNanos[i * SLOT_LONGS + DONE] = System.nanoTime();
+        }
+        barrier.arriveDone(i);
         return i;
     }
 
+    // Task will be submitted
+    public static void submitted(int task) {
+        if (RECORD_LATENCIES) {
+            taskNanos[task * SLOT_LONGS + SUBMIT] = System.nanoTime();
+        }
+    }
+
+    static long timestamp(int task, int event) {
+        return taskNanos[task * SLOT_LONGS + event];
+    }
+
+    static void logLatencies(String title, IntToLongFunction taskNanos) {
+        if (THREAD_CNT == 0) {
+            log(title + ": no tasks");
+            return;
+        }
+        long[] us = new long[THREAD_CNT];
+        for (int t = 0; t < THREAD_CNT; t++) {
+            us[t] = taskNanos.applyAsLong(t) / 1000;
+        }
+        Arrays.sort(us);
+        log(title + ": p50 " + percentile(us, 0.5) + " us, p99 " + percentile(us, 0.99)
+            + " us, p99.9 " + percentile(us, 0.999) + " us, max " + us[us.length - 1] + " us");
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
     public static volatile byte[] tmpArray;
     public static void triggerGC() {
         long bytesToAllocate = SHOULD_TRIGGER_GC ? (NEW_GEN_SIZE_BYTES) : 0;
@@ -185,19 +545,411 @@ public class TrivialVthreadMicroBenchmark {
     }
 
     public static volatile long dummy = 0;
-    public static void recMethod_dontinline(int i) {
-        dummy++;
+    public static void recMethod_dontinline(int i, int task) {
+        counter.increment_dontinline();
         if (i > 0) {
-            recMethod_dontinline(i - 1);
+            recMethod_dontinline(i - 1, task);
             return;
         }
-        await(runToCompletionLatch);
+        if (WAIT_FOR_RELEASE) {
+            barrier.awaitRelease(task);
+        }
+        if (RECORD_RELEASE_TIME) {
+            lastReleasedNanos.accumulate(System.nanoTime());
+        }
+    }
+
+    // What the parked threads wait on and how the main thread waits for them to finish
+    interface Barrier {
+        void awaitRelease(int task);
+        void release();
+        void arriveDone(int task);
+        void awaitDone();
+    }
+
+    static Barrier newBarrier() {
+        return switch (BARRIER_KIND) {
+        case "latch" -> new LatchBarrier(THREAD_CNT);
+        case "phaser" -> new PhaserBarrier(THREAD_CNT, STRIPE_CNT);
+        case "striped" -> new StripedBarrier(THREAD_CNT, STRIPE_CNT);
+        case "counter" -> new CounterBarrier(THREAD_CNT);
+        default -> throw new IllegalArgumentException("Unknown barrier: " + BARRIER_KIND);
+        };
+    }
+
+    static class LatchBarrier implements Barrier {
+        final CountDownLatch runToCompletionLatch = new CountDownLatch(1);
+        final CountDownLatch threadsDoneLatch;
+
+        LatchBarrier(int parties) {
+            threadsDoneLatch = new CountDownLatch(parties);
+        }
+
+        public void awaitRelease(int task) { await(runToCompletionLatch); }
+        public void release()              { runToCompletionLatch.countDown(); }
+        public void arriveDone(int task)   { threadsDoneLatch.countDown(); }
+        public void awaitDone()            { await(threadsDoneLatch); }
+    }
+
+    // Tiered Phasers share the wait queues of their root, so a thread waiting on a leaf of
+    // a tree is still woken from the root's queue. The release leaves are therefore
+    // independent Phasers, each with one extra party for its parent in a binary tree over
+    // the leaves: the main thread arrives at leaf 0 and the first thread of leaf l arrives
+    // at leaves 2l+1 and 2l+2 when it returns. The completion leaves are attached to a
+    // root because only the main thread waits there.
+    static class PhaserBarrier implements Barrier {
+        static final int MAX_PARTIES = 65535;
+
+        final Phaser doneRoot = new Phaser(1);    // main thread
+        final Phaser[] releaseLeaves;
+        final Phaser[] doneLeaves;
+        final int leafSize;
+
+        PhaserBarrier(int parties, int leafCnt) {
+            leafSize = Math.max(1, Math.min((parties + leafCnt - 1) / leafCnt, MAX_PARTIES - 1));
+            leafCnt = (parties + leafSize - 1) / leafSize;
+            if (leafCnt > MAX_PARTIES) {
+                throw new IllegalArgumentException("Too many parties: " + parties);
+            }
+            releaseLeaves = new Phaser[leafCnt];
+            doneLeaves = new Phaser[leafCnt];
+            for (int l = 0; l < leafCnt; l++) {
+                int n = Math.min(leafSize, parties - l * leafSize);
+                releaseLeaves[l] = new Phaser(n + 1); // threads and parent
+                doneLeaves[l] = new Phaser(doneRoot, n);
+            }
+        }
+
+        public void awaitRelease(int task) {
+            int leaf = task / leafSize;
+            releaseLeaves[leaf].arriveAndAwaitAdvance();
+            if (task % leafSize == 0) {
+                releaseLeaf(2 * leaf + 1);
+                releaseLeaf(2 * leaf + 2);
+            }
+        }
+
+        void releaseLeaf(int leaf) {
+            if (leaf < releaseLeaves.length) {
+                releaseLeaves[leaf].arrive();
+            }
+        }
+
+        public void release()              { releaseLeaf(0); }
+        public void arriveDone(int task)   { doneLeaves[task / leafSize].arrive(); }
+        public void awaitDone()            { doneRoot.arriveAndAwaitAdvance(); }
+    }
+
+    static class StripedBarrier implements Barrier {
+        final CountDownLatch[] releaseLatches;
+        final CountDownLatch[] doneLatches;
+
+        StripedBarrier(int parties, int stripes) {
+            releaseLatches = new CountDownLatch[stripes];
+            doneLatches = new CountDownLatch[stripes];
+            for (int s = 0; s < stripes; s++) {
+                releaseLatches[s] = new CountDownLatch(1);
+                doneLatches[s] = new CountDownLatch(parties / stripes + (s < parties % stripes ? 1 : 0));
+            }
+        }
+
+        public void awaitRelease(int task) { await(releaseLatches[task % releaseLatches.length]); }
+        public void arriveDone(int task)   { doneLatches[task % doneLatches.length].countDown(); }
+
+        public void release() {
+            for (CountDownLatch latch : releaseLatches) {
+                latch.countDown();
+            }
+        }
+
+        public void awaitDone() {
+            for (CountDownLatch latch : doneLatches) {
+                await(latch);
+            }
+        }
+    }
+
+    static class CounterBarrier implements Barrier {
+        final CountDownLatch runToCompletionLatch = new CountDownLatch(1);
+        final AtomicInteger remaining;
+        final Thread waiter = Thread.currentThread();
+
+        CounterBarrier(int parties) {
+            remaining = new AtomicInteger(parties);
+        }
+
+        public void awaitRelease(int task) { await(runToCompletionLatch); }
+        public void release()              { runToCompletionLatch.countDown(); }
+
+        public void arriveDone(int task) {
+            if (remaining.decrementAndGet() == 0) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        public void awaitDone() {
+            while (remaining.get() > 0) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // What recMethod_dontinline increments in every frame
+    interface Counter {
+        void increment_dontinline();
+        default void flush() {}
+        long sum();
+    }
+
+    static Counter newCounter() {
+        return switch (COUNTER_KIND) {
+        case "shared" -> new SharedCounter();
+        case "adder" -> new AdderCounter();
+        case "carrier" -> new CarrierSlotCounter();
+        case "local" -> new ThreadLocalCounter();
+        case "none" -> new NoCounter();
+        default -> throw new IllegalArgumentException("Unknown counter: " + COUNTER_KIND);
+        };
+    }
+
+    static class SharedCounter implements Counter {
+        public void increment_dontinline() { dummy++; }
+        public long sum()                   { return dummy; }
+    }
+
+    static class AdderCounter implements Counter {
+        final LongAdder adder = new LongAdder();
+
+        public void increment_dontinline() { adder.increment(); }
+        public long sum()                   { return adder.sum(); }
+    }
+
+    // A virtual thread does not change its carrier while it descends in recMethod_dontinline,
+    // so the slot of a carrier is only updated by one thread at a time. Platform threads can
+    // share a slot if their ids collide.
+    static class CarrierSlotCounter implements Counter {
+        static final int SLOTS = 1024;
+        static final int PAD = 16; // longs per slot
+        static final MethodHandle CURRENT_CARRIER = currentCarrierThread();
+
+        final AtomicLongArray slots = new AtomicLongArray(SLOTS * PAD);
+
+        public void increment_dontinline() {
+            Thread carrier;
+            try {
+                carrier = (Thread) CURRENT_CARRIER.invokeExact();
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+            int index = carrier instanceof ForkJoinWorkerThread w ? w.getPoolIndex() : (int) carrier.threadId();
+            slots.getAndIncrement((index & (SLOTS - 1)) * PAD);
+        }
+
+        public long sum() {
+            long sum = 0;
+            for (int s = 0; s < SLOTS; s++) {
+                sum += slots.get(s * PAD);
+            }
+            return sum;
+        }
+
+        // Thread.currentCarrierThread() is private to java.lang
+        static MethodHandle currentCarrierThread() {
+            try {
+                return MethodHandles.privateLookupIn(Thread.class, MethodHandles.lookup())
+                    .findStatic(Thread.class, "currentCarrierThread", MethodType.methodType(Thread.class));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("-Dcounter=carrier needs --add-opens java.base/java.lang=ALL-UNNAMED", e);
+            }
+        }
+    }
+
+    static class ThreadLocalCounter implements Counter {
+        final ThreadLocal<long[]> cell = ThreadLocal.withInitial(() -> new long[1]);
+        final LongAdder total = new LongAdder();
+
+        public void increment_dontinline() { cell.get()[0]++; }
+        public long sum()                   { return total.sum(); }
+
+        public void flush() {
+            long[] c = cell.get();
+            total.add(c[0]);
+            c[0] = 0;
+        }
+    }
+
+    static class NoCounter implements Counter {
+        public void increment_dontinline() {}
+        public long sum()                   { return 0; }
+    }
+
+    // Heap usage and stack chunks (the heap copies of the frames of unmounted vthreads)
+    record HeapSample(long heapUsed, long chunkCount, long chunkBytes) {
+        static final String STACK_CHUNK_CLASS = "jdk.internal.vm.StackChunk";
+
+        static HeapSample take() {
+            long chunkCount = 0;
+            long chunkBytes = 0;
+            // Lines look like "   5:        100000      17600000  jdk.internal.vm.StackChunk (java.base@21.0.3)"
+            for (String line : gcClassHistogram().split("\n")) {
+                String[] cols = line.trim().split("\\s+");
+                if (cols.length >= 4 && cols[3].equals(STACK_CHUNK_CLASS)) {
+                    chunkCount = Long.parseLong(cols[1]);
+                    chunkBytes = Long.parseLong(cols[2]);
+                }
+            }
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            return new HeapSample(heapUsed, chunkCount, chunkBytes);
+        }
+
+        // Same as jcmd <pid> GC.class_histogram. Does a full GC before counting.
+        static String gcClassHistogram() {
+            try {
+                ObjectName dcmd = new ObjectName("com.sun.management:type=DiagnosticCommand");
+                return (String) ManagementFactory.getPlatformMBeanServer()
+                    .invoke(dcmd, "gcClassHistogram", new Object[] { new String[0] },
+                            new String[] { String[].class.getName() });
+            } catch (JMException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // Parks all threads at depth 0 and samples the stack chunks per thread
+    static void calibrateFootprint() {
+        recDepth = 0;
+        threadsStartedLatch = new CountDownLatch(THREAD_CNT);
+        barrier = newBarrier();
+        System.gc();
+        HeapSample before = HeapSample.take();
+        spawnThreads();
+        await(threadsStartedLatch);
+        HeapSample after = HeapSample.take();
+        barrier.release();
+        barrier.awaitDone();
+        recDepth = REC_COUNT;
+        if (THREAD_CNT > 0) {
+            fixedChunkBytesPerThread = (after.chunkBytes() - before.chunkBytes()) / THREAD_CNT;
+        }
+    }
+
+    static void logFootprint(HeapSample before, HeapSample after) {
+        long heapDelta = after.heapUsed() - before.heapUsed();
+        long chunkCount = after.chunkCount() - before.chunkCount();
+        long chunkBytes = after.chunkBytes() - before.chunkBytes();
+        String perFrame = "-";
+        if (THREAD_CNT > 0 && REC_COUNT > 0 && fixedChunkBytesPerThread >= 0) {
+            perFrame = Long.toString((chunkBytes / THREAD_CNT - fixedChunkBytesPerThread) / REC_COUNT);
+        }
+        log("Footprint: heap +" + heapDelta / K + " KB (" + perUnit(heapDelta, THREAD_CNT) + " bytes/thread)"
+            + ", stack chunks +" + chunkCount + " +" + chunkBytes / K + " KB"
+            + " (" + perUnit(chunkBytes, THREAD_CNT) + " bytes/thread, of which "
+            + (fixedChunkBytesPerThread < 0 ? "-" : fixedChunkBytesPerThread) + " fixed, "
+            + perFrame + " bytes/frame at depth " + REC_COUNT + ")");
+    }
+
+    static String perUnit(long total, long units) {
+        return units == 0 ? "-" : Long.toString(total / units);
+    }
+
+    // Collects the pauses of all GCs with their start time. Notifications are delivered
+    // asynchronously, catchUp() waits for the ones of the collections done so far.
+    static class GCPauseListener implements NotificationListener {
+        record Pause(long startMs, long durationMs) {}
+
+        private final List<GarbageCollectorMXBean> beans = new ArrayList<>();
+        private final List<Pause> pauses = new ArrayList<>();
+        private long collectionsAtInstall;
+        private long notified;
+
+        static GCPauseListener install() {
+            GCPauseListener listener = new GCPauseListener();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                // The beans for concurrent cycles (e.g. "ZGC Major Cycles", "G1 Concurrent GC")
+                // report the duration of the cycle, not of a pause
+                String name = gc.getName();
+                if (name.contains("Cycles") || name.contains("Concurrent")) continue;
+                listener.beans.add(gc);
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+            }
+            listener.collectionsAtInstall = listener.collections();
+            return listener;
+        }
+
+        @Override
+        public synchronized void handleNotification(Notification n, Object handback) {
+            if (!n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+            var info = GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData());
+            pauses.add(new Pause(info.getGcInfo().getStartTime(), info.getGcInfo().getDuration()));
+            notified++;
+        }
+
+        long collections() {
+            return beans.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        // Waits (at most 1 s) until the notifications of all collections so far have arrived
+        void catchUp() {
+            long expected = collections() - collectionsAtInstall;
+            long deadline = System.nanoTime() + 1_000_000_000L;
+            while (notified() < expected && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+
+        synchronized long notified() {
+            return notified;
+        }
+
+        synchronized void reset() {
+            pauses.clear();
+        }
+
+        // Pauses that started in [fromMs, toMs) of vm uptime
+        synchronized String summary(long fromMs, long toMs) {
+            long count = 0;
+            long totalMs = 0;
+            long maxMs = 0;
+            for (Pause p : pauses) {
+                if (p.startMs() < fromMs || p.startMs() >= toMs) continue;
+                count++;
+                totalMs += p.durationMs();
+                maxMs = Math.max(maxMs, p.durationMs());
+            }
+            return count + " pauses, " + totalMs + " ms total, " + maxMs + " ms max";
+        }
+    }
+
+    static long uptimeMs() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    static void resetGCPauses() {
+        if (gcPauses != null) {
+            gcPauses.reset();
+        }
+    }
+
+    static void logGCPauses(String phase, long fromMs) {
+        if (gcPauses != null) {
+            long toMs = uptimeMs();
+            gcPauses.catchUp();
+            log("GC pauses in " + phase + " phase: " + gcPauses.summary(fromMs, toMs));
+        }
     }
 
     static void log(String m) {
         System.out.println(Thread.currentThread().getName() + ": " + m);
     }
 
+    static void join(Thread t) {
+        try {
+            t.join();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
     static void await(CountDownLatch latch) {
         try {
             latch.await();
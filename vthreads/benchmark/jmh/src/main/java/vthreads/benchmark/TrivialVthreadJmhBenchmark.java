@@ -0,0 +1,185 @@
+package vthreads.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+  JMH port of vthreads/benchmark/TrivialVthreadMicroBenchmark.java
+
+  testEntry() is split into its two phases which are measured separately:
+
+    start   submit THREAD_CNT tasks and wait until all of them have started
+            (i.e. are parked at the bottom of recMethod_dontinline)
+    finish  release the parked tasks and wait until all of them are done
+
+  The phase that is not measured is executed in a per-invocation setup/teardown. The gc
+  param only applies to finish.
+  Each invocation is a single shot, like one iteration of the original main loop.
+
+  $ mvn -B package
+  $ java -jar target/benchmarks.jar
+  $ java -jar target/benchmarks.jar -p threads=vthreads -p threadCnt=100000 -p gc=nogc,gc
+
+  Forked JVMs use the same settings as the comment block in the original benchmark,
+  i.e. -XX:+UseParallelGC -Xmx1200m -Xmn1g -XX:CompileCommand=dontinline,*::*dontinline
+  Use -jvmArgsAppend to override (e.g. a larger heap for pthreads with many threads).
+*/
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 3, jvmArgsAppend = {
+        "-XX:+UseParallelGC", "-Xmx1200m", "-Xmn1g",
+        "-XX:CompileCommand=dontinline,*::*dontinline" })
+@State(Scope.Benchmark)
+public class TrivialVthreadJmhBenchmark {
+    public static final long K = 1024;
+    public static final long M = 1024 * K;
+
+    public static final long NEW_GEN_SIZE_BYTES = 1024 * M;
+    public static final int TMP_ARRAY_SIZE_BYTES = 10_000;
+
+    // Test Configuration
+    @Param({"vthreads", "pthreads"})
+    public String threads;
+
+    @Param({"10000"})
+    public int threadCnt;
+
+    @Param({"100"})
+    public int recCount;
+
+    // Use java.util.concurrent synchronization to avoid pinning
+    public static CountDownLatch threadsStartedLatch;
+    public static CountDownLatch runToCompletionLatch;
+    public static CountDownLatch threadsDoneLatch;
+
+    public static volatile int REC_COUNT;
+
+    public ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        REC_COUNT = recCount;
+        executor = threads.equals("vthreads") ?
+            Executors.newVirtualThreadPerTaskExecutor() :
+            Executors.newFixedThreadPool(threadCnt);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        executor.shutdown();
+    }
+
+    //// start phase
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        threadsStartedLatch = new CountDownLatch(threadCnt);
+        runToCompletionLatch = new CountDownLatch(1);
+        threadsDoneLatch = new CountDownLatch(threadCnt);
+
+        // Cleanup heap before test run
+        System.gc();
+    }
+
+    @Benchmark
+    public void start(StartedState ignored) {
+        startThreads();
+    }
+
+    // Runs the finish phase after each measured start phase. Declared as a separate
+    // state so that it does not interfere with the finish benchmark below.
+    @State(Scope.Benchmark)
+    public static class StartedState {
+        @TearDown(Level.Invocation)
+        public void tearDownInvocation() {
+            runToCompletionLatch.countDown();
+            await(threadsDoneLatch);
+        }
+    }
+
+    //// finish phase
+
+    @Benchmark
+    public void finish(ParkedState ignored) {
+        runToCompletionLatch.countDown();
+        await(threadsDoneLatch);
+    }
+
+    // Starts the threads and optionally triggers a GC before each measured finish phase.
+    // The gc param is declared here so that it only applies to the finish benchmark.
+    @State(Scope.Benchmark)
+    public static class ParkedState {
+        @Param({"nogc", "gc"})
+        public String gc;
+
+        @Setup(Level.Invocation)
+        public void setupInvocation(TrivialVthreadJmhBenchmark bm) {
+            bm.startThreads();
+            if (gc.equals("gc")) {
+                triggerGC();
+            }
+        }
+    }
+
+    void startThreads() {
+        for (int i = 0; i < threadCnt; i++) {
+            final int ii = i;
+            executor.submit(() -> threadEntry(ii));
+        }
+        await(threadsStartedLatch);
+    }
+
+    public static int threadEntry(int i) {
+        threadsStartedLatch.countDown();
+        recMethod_dontinline(REC_COUNT);
+        threadsDoneLatch.countDown();
+        return i;
+    }
+
+    public static volatile byte[] tmpArray;
+    public static void triggerGC() {
+        long bytesToAllocate = NEW_GEN_SIZE_BYTES;
+        while (bytesToAllocate > 0) {
+            tmpArray = new byte[TMP_ARRAY_SIZE_BYTES];
+            bytesToAllocate -= TMP_ARRAY_SIZE_BYTES;
+        }
+        tmpArray = null;
+    }
+
+    public static volatile long dummy = 0;
+    public static void recMethod_dontinline(int i) {
+        dummy++;
+        if (i > 0) {
+            recMethod_dontinline(i - 1);
+            return;
+        }
+        await(runToCompletionLatch);
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Runs TestClassInit.java in measured mode in forked JVMs for every combination of
+  endpoint, limiter, CONC_REQUESTS and carrier parallelism and prints a table of the
+  results. With jdk 25 combinations where CONC_REQUESTS is large compared to the
+  parallelism are expected to stall, with jdk 26 (JDK-8369238) they are expected to make
+  progress. CONC_REQUESTS only applies to the fixed limiter, the adaptive limiters are
+  run once per parallelism. A child that is still running -Dtimeout seconds after it was
+  started is killed and its row is recorded as stalled.
+
+  $ cd vthreads/clinit
+  $ java ClassInitSweep.java
+
+  Settings (system properties):
+
+    -Dendpoints=clinit,lazy
+    -Dlimiters=fixed,aimd,gradient
+    -Dconc_requests_list=10,100,1000
+    -Dparallelisms=1,2,4,<available processors>
+    -Dduration=10                     seconds per run
+    -Dwatchdog=5                      seconds without progress until a run counts as stalled
+    -Dtimeout=<duration + 60>         seconds until a child is killed
+    -Duse_vthreads=true
+    -Ddb_capacity=<n>                 passed on, makes the query latency depend on the load
+                                      so that the adaptive limiters have something to adapt to
+    -Dout=class_init_sweep.txt        file the table is written to
+*/
+
+public class ClassInitSweep {
+
+    public static final String TEST = "TestClassInit.java";
+    public static final String[] COLUMNS = { "endpoint", "limiter", "conc_requests", "parallelism", "limit",
+                                             "requests", "rps", "p50_ms", "p99_ms", "max_ms", "first_request_ms",
+                                             "first_request_after_init_ms", "stalled" };
+
+    static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws Exception {
+        String[] endpoints = System.getProperty("endpoints", "clinit,lazy").split(",");
+        String[] limiters = System.getProperty("limiters", "fixed,aimd,gradient").split(",");
+        String[] concRequests = System.getProperty("conc_requests_list", "10,100,1000").split(",");
+        String[] parallelisms = System.getProperty("parallelisms",
+                                                   "1,2,4," + Runtime.getRuntime().availableProcessors()).split(",");
+
+        List<String> table = new ArrayList<>();
+        table.add(String.join("\t", COLUMNS));
+        for (String parallelism : parallelisms) {
+            for (String endpoint : endpoints) {
+                for (String limiter : limiters) {
+                    for (String conc : limiter.equals("fixed") ? concRequests : new String[] { "-" }) {
+                        Map<String, String> result = runTest(endpoint, limiter, conc, parallelism);
+                        List<String> row = new ArrayList<>();
+                        for (String column : COLUMNS) {
+                            row.add(result.getOrDefault(column, "-"));
+                        }
+                        row.set(0, endpoint);
+                        row.set(1, limiter);
+                        row.set(2, conc);
+                        row.set(3, parallelism);
+                        table.add(String.join("\t", row));
+                    }
+                }
+            }
+        }
+
+        table.forEach(OUT::println);
+        Path out = Path.of(System.getProperty("out", "class_init_sweep.txt"));
+        Files.write(out, table);
+        OUT.println("Table written to " + out.toAbsolutePath());
+    }
+
+    // Returns the key=value pairs of the "Result:" line
+    static Map<String, String> runTest(String endpoint, String limiter, String conc, String parallelism)
+            throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-Djdk.virtualThreadScheduler.parallelism=" + parallelism);
+        cmd.add("-Duse_vthreads=" + System.getProperty("use_vthreads", "true"));
+        cmd.add("-Dendpoint=" + endpoint);
+        cmd.add("-Dlimiter=" + limiter);
+        if (!conc.equals("-")) {
+            cmd.add("-Dconc_requests=" + conc);
+        }
+        cmd.add("-Dduration=" + System.getProperty("duration", "10"));
+        cmd.add("-Dwatchdog=" + System.getProperty("watchdog", "5"));
+        if (System.getProperty("db_capacity") != null) {
+            cmd.add("-Ddb_capacity=" + System.getProperty("db_capacity"));
+        }
+        cmd.add(TEST);
+        OUT.println("$ " + String.join(" ", cmd));
+
+        long timeoutSeconds = Long.getLong("timeout", Long.parseLong(System.getProperty("duration", "10")) + 60);
+        Map<String, String> result = new LinkedHashMap<>();
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        Thread reader = Thread.ofPlatform().start(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        OUT.println("  " + line);
+                        if (line.startsWith("Result: ")) {
+                            for (String kv : line.substring("Result: ".length()).split(" ")) {
+                                int eq = kv.indexOf('=');
+                                if (eq > 0) result.put(kv.substring(0, eq), kv.substring(eq + 1));
+                            }
+                        }
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            });
+        boolean timedOut = !p.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+        if (timedOut) {
+            OUT.println("Killed after " + timeoutSeconds + " s");
+            p.destroyForcibly().waitFor();
+        }
+        // The result is only read after the reader has terminated
+        reader.join();
+        if (timedOut) {
+            result.put("stalled", "true");
+        }
+        return result;
+    }
+}
@@ -1,7 +1,13 @@
 import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * The test provokes a situation where manny threads are blocked waiting for
@@ -23,12 +29,72 @@ import java.util.concurrent.ThreadFactory;
  * java -Duse_vthreads=true TestClassInit.java
  *
  * Maybe increase CONC_REQUESTS below if your system has many CPUs.
+ *
+ * Measured mode
+ *
+ * java -Duse_vthreads=true -Dduration=20 -Dconc_requests=100 TestClassInit.java
+ *
+ * runs for the given number of seconds and then prints requests per second, a
+ * latency histogram of handle() and the time from the end of the DBConnection
+ * initialization to the first completed request. A watchdog prints the progress
+ * every second and reports a stall if no request completes for -Dwatchdog=<s>
+ * seconds (default 10), which is what the deadlock described above looks like.
+ * The watchdog also prints the results at the end of the duration, then as
+ * stalled if no request completed in the last second, because the main thread
+ * may be blocked for good. The exit code of a stalled run is 2.
+ * ClassInitSweep.java runs this for different CONC_REQUESTS and carrier
+ * parallelism.
+ *
+ * Admission control
+ *
+ * -Dlimiter=<kind> selects how doConcurrently limits the work in flight:
+ *
+ *   fixed      Semaphore with CONC_REQUESTS permits (default)
+ *   aimd       the limit grows by 1/limit per task completed below
+ *              -Dlatency_target_ms=<n> (default 150) while the limit is used by at
+ *              least half, i.e. by about 1 per round trip. A task above the target
+ *              multiplies the limit by 0.9, at most once per round trip: tasks that
+ *              were started before the last decrease do not decrease it again.
+ *   gradient   once per round trip the limit is multiplied by the gradient
+ *              min(1, tolerance * long term latency / short term latency), at
+ *              least 0.5, plus min(4, sqrt(limit)) as headroom, and smoothed
+ *              (as in Netflix' Gradient2 limiter). The long term latency follows
+ *              drops at once and rises slowly, so it stays close to the latency
+ *              without queueing. -Dgradient_tolerance=<x> (default 1.5) is how much
+ *              queueing delay is accepted before the limit shrinks.
+ *
+ * The adaptive limiters start with -Dinitial_limit=<n> (default 10) and are
+ * capped at -Dmax_limit=<n> (default 10000). Both only react to latency that
+ * rises with the concurrency. A query just sleeps 100 ms by default, so both
+ * grow for as long as the limit is used. -Ddb_capacity=<n> lets at most n
+ * queries run at the same time, the others queue for a permit, so the latency
+ * grows with the work in flight beyond n. With n = 50 aimd then holds the limit
+ * at about n with a p50 of 106 ms. gradient settles where the queueing delay
+ * is just under the tolerance, at about 1.7 n with a p50 of 130-150 ms for
+ * the default, about 1.2 n with a p50 of about 115 ms for a tolerance of 1.1.
+ * Because the long term latency still rises slowly, the limit keeps creeping up
+ * by a fraction per second in long runs.
+ *
+ * Lazy endpoint
+ *
+ * -Dendpoint=lazy uses LazyServiceEndpoint instead of ServiceEndpoint. It has no
+ * static initializer that waits for DBConnection. Instead getRequest() waits on a
+ * CompletableFuture that is completed when DBConnection is initialized, so requests
+ * park (and unmount) instead of blocking in <clinit>. Compare cold start
+ * (first_request_ms, first_request_after_init_ms) and throughput with the default
+ * -Dendpoint=clinit.
  */
 public class TestClassInit {
 
     // Maybe increase this value if your system has many CPUs
-    private static final int CONC_REQUESTS = 100;
-    private static final Semaphore requSem = new Semaphore(CONC_REQUESTS);
+    private static final int CONC_REQUESTS = Integer.getInteger("conc_requests", 100);
+    private static final int DURATION_SECONDS = Integer.getInteger("duration", 0);
+    private static final int WATCHDOG_SECONDS = Integer.getInteger("watchdog", 10);
+    private static final boolean MEASURED = DURATION_SECONDS > 0;
+    private static final String LIMITER_KIND = System.getProperty("limiter", "fixed");
+    private static final Limiter LIMITER = Limiter.create(LIMITER_KIND);
+    private static final String ENDPOINT = System.getProperty("endpoint", "clinit");
+    private static final boolean LAZY_ENDPOINT = ENDPOINT.equals("lazy");
     private static final PrintStream OUT = System.out;
 
     public static final ThreadFactory THREAD_FACTORY =
@@ -37,27 +103,177 @@ public class TestClassInit {
 
     /** MAIN ***********************************************************************/
     public static void main(String[] args) {
+        if (MEASURED) {
+            Stats.startWatchdog();
+        }
         doConcurrently(() -> DBConnection.initialize("database"));
+        // In measured mode the watchdog reports and exits when the duration is over. It
+        // does not rely on this loop, which may be blocked in acquire() forever.
         while (true) {
             doConcurrently(() -> {
+                long start = System.nanoTime();
+                Request request = LAZY_ENDPOINT ? LazyServiceEndpoint.getRequest()
 // ISSUE: many blocked/pinned waiting for class init to complete
-                ServiceEndpoint.getRequest().handle();
+                                                : ServiceEndpoint.getRequest();
+                request.handle();
+                Stats.requestDone(start);
             });
         }
     }
 
     private static void doConcurrently(Runnable task) {
-        requSem.acquireUninterruptibly();
+        LIMITER.acquire();
         Runnable wrappedTask = () -> {
+            long start = System.nanoTime();
             try {
                 task.run();
             } finally {
-                requSem.release();
+                LIMITER.release(System.nanoTime() - start);
             }
         };
         THREAD_FACTORY.newThread(wrappedTask).start();
     }
 
+    /** Limiter ******************************************************************/
+    interface Limiter {
+        void acquire();
+        void release(long latencyNanos);
+        int limit();
+
+        static Limiter create(String kind) {
+            return switch (kind) {
+            case "fixed" -> new FixedLimiter(CONC_REQUESTS);
+            case "aimd" -> new AIMDLimiter();
+            case "gradient" -> new GradientLimiter();
+            default -> throw new IllegalArgumentException("Unknown limiter: " + kind);
+            };
+        }
+    }
+
+    static class FixedLimiter implements Limiter {
+        private final Semaphore requSem;
+        private final int permits;
+
+        FixedLimiter(int permits) {
+            this.permits = permits;
+            requSem = new Semaphore(permits);
+        }
+
+        public void acquire()                   { requSem.acquireUninterruptibly(); }
+        public void release(long latencyNanos)  { requSem.release(); }
+        public int limit()                      { return permits; }
+    }
+
+    // Admits tasks while fewer than limit are in flight. Subclasses adapt the limit
+    // to the latency of completed tasks. Waiting is done on a Condition so that
+    // waiting virtual threads unmount.
+    static abstract class AdaptiveLimiter implements Limiter {
+        static final double MIN_LIMIT = 1;
+        static final double MAX_LIMIT = Integer.getInteger("max_limit", 10_000);
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition belowLimit = lock.newCondition();
+        protected double limit = Integer.getInteger("initial_limit", 10);
+        protected int inFlight;
+
+        public void acquire() {
+            lock.lock();
+            try {
+                while (inFlight >= (int) limit) {
+                    belowLimit.awaitUninterruptibly();
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release(long latencyNanos) {
+            lock.lock();
+            try {
+                inFlight--;
+                limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, update(latencyNanos)));
+                belowLimit.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int limit() {
+            return (int) limit;
+        }
+
+        // Returns the new limit. Called with the lock held and inFlight already decremented.
+        abstract double update(long latencyNanos);
+    }
+
+    static class AIMDLimiter extends AdaptiveLimiter {
+        static final long TARGET_NANOS = Long.getLong("latency_target_ms", 150) * 1_000_000;
+        static final double BACKOFF = 0.9;
+
+        private long lastDecreaseNanos;
+
+        double update(long latencyNanos) {
+            if (latencyNanos > TARGET_NANOS) {
+                // Only the first slow task of a round trip backs off, the ones that
+                // were already in flight at the last decrease saw the old limit
+                long now = System.nanoTime();
+                if (now - lastDecreaseNanos < latencyNanos) {
+                    return limit;
+                }
+                lastDecreaseNanos = now;
+                return limit * BACKOFF;
+            }
+            // Only grow if the current limit is actually used
+            return (inFlight + 1) * 2 >= limit ? limit + 1 / limit : limit;
+        }
+    }
+
+    // Gradient2 style: the limit shrinks when the short term latency rises above the
+    // long term latency by more than the tolerance, else grows by a bounded headroom.
+    // Latencies are averaged over windows of about one round trip and the limit is only
+    // adapted once per window, so the growth does not scale with the completion rate.
+    static class GradientLimiter extends AdaptiveLimiter {
+        static final double LONG_ALPHA = 0.002;
+        static final double SMOOTHING = 0.2;
+        static final double TOLERANCE = Double.parseDouble(System.getProperty("gradient_tolerance", "1.5"));
+        static final double MAX_HEADROOM = 4;
+
+        private double longRtt;
+        private long windowStartNanos;
+        private long windowSumNanos;
+        private int windowCount;
+
+        double update(long latencyNanos) {
+            long now = System.nanoTime();
+            if (windowCount == 0) {
+                windowStartNanos = now;
+            }
+            windowSumNanos += latencyNanos;
+            windowCount++;
+            if (now - windowStartNanos < windowSumNanos / windowCount) {
+                return limit;
+            }
+            double shortRtt = (double) windowSumNanos / windowCount;
+            windowSumNanos = 0;
+            windowCount = 0;
+
+            if (longRtt == 0) {
+                longRtt = shortRtt;
+            }
+            // The long term average rises slowly but follows a drop at once (e.g. after
+            // the slow initialization), so it approximates the latency without queueing
+            longRtt = Math.min(shortRtt, longRtt + LONG_ALPHA * (shortRtt - longRtt));
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+            double newLimit = limit * gradient + Math.min(MAX_HEADROOM, Math.sqrt(limit));
+            // Only grow if the current limit is actually used
+            if (newLimit > limit && (inFlight + 1) * 2 < limit) {
+                return limit;
+            }
+            return limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        }
+    }
+
     /** ServiceEndpoint *************************************************************/
     public static class ServiceEndpoint {
         static {
@@ -70,22 +286,42 @@ public class TestClassInit {
         }
     }
 
+    /** LazyServiceEndpoint *********************************************************/
+    public static class LazyServiceEndpoint {
+        // Waiting on the future parks the thread, a virtual thread is unmounted
+        public static Request getRequest() {
+            DBConnection.ready().join();
+            return new Request();
+        }
+    }
+
     /** Request ++++++**************************************************************/
     public static class Request {
         public void handle() {
             String data = DBConnection.query("SELECT * FROM table");
-            OUT.print(data);
+            if (!MEASURED) {
+                OUT.print(data);
+            }
         }
     }
 
     /** DBConnection *+************************************************************/
     private static class DBConnection {
+        private static final int CAPACITY = Integer.getInteger("db_capacity", 0);
+        private static final Semaphore capacity = CAPACITY > 0 ? new Semaphore(CAPACITY, true) : null;
         private static CountDownLatch latch = new CountDownLatch(1);
+        private static final CompletableFuture<Void> readyFuture = new CompletableFuture<>();
 
         public static void initialize(String dbName) {
             OUT.println("Initializing DBConnection to " + dbName + ".");
             sleep(2000); // Simulate time-consuming initialization
+            Stats.dbInitialized();
             latch.countDown();
+            readyFuture.complete(null);
+        }
+
+        public static CompletableFuture<Void> ready() {
+            return readyFuture;
         }
 
         public static void waitForInitialization() {
@@ -98,8 +334,142 @@ public class TestClassInit {
         }
 
         public static String query(String sql) {
-            sleep(100); // Simulate request handling
-            return "R";
+            if (capacity == null) {
+                sleep(100); // Simulate request handling
+                return "R";
+            }
+            // Queue for one of the connections, the latency grows with the load
+            capacity.acquireUninterruptibly();
+            try {
+                sleep(100);
+                return "R";
+            } finally {
+                capacity.release();
+            }
+        }
+    }
+
+    /** Stats ********************************************************************/
+    static class Stats {
+        // Log-linear histogram of latencies in us, 8 sub-buckets per power of 2
+        private static final AtomicLongArray buckets = new AtomicLongArray(64 * 8);
+        private static final AtomicLong requests = new AtomicLong();
+        private static final AtomicLong maxLatencyUs = new AtomicLong();
+        private static final AtomicLong firstRequestNanos = new AtomicLong();
+        private static final long startNanos = System.nanoTime();
+        private static volatile long dbInitializedNanos;
+
+        static void dbInitialized() {
+            dbInitializedNanos = System.nanoTime();
+        }
+
+        static void requestDone(long start) {
+            long end = System.nanoTime();
+            long us = (end - start) / 1000;
+            buckets.incrementAndGet(index(us));
+            maxLatencyUs.accumulateAndGet(us, Math::max);
+            firstRequestNanos.compareAndSet(0, end);
+            requests.incrementAndGet();
+        }
+
+        // Prints progress every second, ends the run after DURATION_SECONDS and
+        // reports a stall if there was no progress for WATCHDOG_SECONDS
+        static void startWatchdog() {
+            Thread.ofPlatform().daemon().name("watchdog").start(() -> {
+                long last = 0;
+                int secondsWithoutProgress = 0;
+                for (int s = 1; s <= DURATION_SECONDS; s++) {
+                    sleep(1000);
+                    long current = requests.get();
+                    OUT.println("Progress: " + s + " s, " + current + " requests, "
+                                + (current - last) + " in the last second, limit " + LIMITER.limit());
+                    secondsWithoutProgress = current == last ? secondsWithoutProgress + 1 : 0;
+                    last = current;
+                    if (secondsWithoutProgress >= WATCHDOG_SECONDS) {
+                        OUT.println("STALLED: no request completed in the last " + secondsWithoutProgress
+                                    + " s, DBConnection initialized: " + (dbInitializedNanos != 0));
+                        report(true);
+                        System.exit(2);
+                    }
+                }
+                // A run that is shorter than the watchdog time also counts as stalled if
+                // no request completed in its last second
+                boolean stalled = secondsWithoutProgress > 0;
+                if (stalled) {
+                    OUT.println("STALLED: no request completed in the last " + secondsWithoutProgress
+                                + " s, DBConnection initialized: " + (dbInitializedNanos != 0));
+                }
+                report(stalled);
+                System.exit(stalled ? 2 : 0);
+            });
+        }
+
+        static void report(boolean stalled) {
+            long end = System.nanoTime();
+            // Requests still in flight may complete while reporting. Use a snapshot of
+            // the histogram for all numbers.
+            long[] counts = new long[buckets.length()];
+            long n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            long sinceInit = dbInitializedNanos == 0 ? 0 : end - dbInitializedNanos;
+            long first = firstRequestNanos.get();
+            String parallelism = System.getProperty("jdk.virtualThreadScheduler.parallelism",
+                                                    Integer.toString(Runtime.getRuntime().availableProcessors()));
+            OUT.println("Result: conc_requests=" + CONC_REQUESTS
+                        + " limiter=" + LIMITER_KIND
+                        + " limit=" + LIMITER.limit()
+                        + " endpoint=" + ENDPOINT
+                        + " parallelism=" + parallelism
+                        + " vthreads=" + Boolean.getBoolean("use_vthreads")
+                        + " seconds=" + String.format(Locale.ROOT, "%.1f", (end - startNanos) / 1e9)
+                        + " requests=" + n
+                        + " rps=" + (sinceInit == 0 ? "0" : String.format(Locale.ROOT, "%.1f", n * 1e9 / sinceInit))
+                        + " p50_ms=" + ms(percentile(counts, 0.5, n))
+                        + " p99_ms=" + ms(percentile(counts, 0.99, n))
+                        + " max_ms=" + ms(maxLatencyUs.get())
+                        + " first_request_ms=" + (first == 0 ? "-" : ms((first - startNanos) / 1000))
+                        + " first_request_after_init_ms="
+                        + (first == 0 || dbInitializedNanos == 0 ? "-" : ms((first - dbInitializedNanos) / 1000))
+                        + " stalled=" + stalled);
+            OUT.println("Latency histogram (ms):");
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                long c = counts[i];
+                if (c == 0) continue;
+                cumulative += c;
+                OUT.println(String.format(Locale.ROOT, "  <= %10s %10d %6.2f%%", ms(upperBound(i)), c, 100.0 * cumulative / n));
+            }
+        }
+
+        static int index(long us) {
+            if (us < 8) return (int) us;
+            int exp = 63 - Long.numberOfLeadingZeros(us);
+            return (exp - 2) * 8 + (int) ((us >>> (exp - 3)) & 7);
+        }
+
+        static long upperBound(int index) {
+            if (index < 8) return index;
+            int shift = index / 8 - 1;
+            return ((8L + index % 8) << shift) + (1L << shift) - 1;
+        }
+
+        static long percentile(long[] counts, double p, long n) {
+            long target = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), maxLatencyUs.get());
+                }
+            }
+            return 0;
+        }
+
+        static String ms(long us) {
+            return String.format(Locale.ROOT, "%.1f", us / 1000.0);
         }
     }
 
@@ -0,0 +1,253 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+/*
+  Runs one of the vthread experiments with an in-process JFR recording stream that
+  aggregates pinning and parking events while the experiment runs. When the experiment
+  ends (main returns, System.exit() or Ctrl-C) a summary is printed with the pin count,
+  the total and the p99 pinned duration per stack trace.
+
+  This is meant as a low overhead alternative to diagnosing pinning with jcmd
+  Thread.dump_to_file snapshots (see out_*.txt and TestClassInit_thread_dump.txt).
+
+  $ cd vthreads/locking_stackdump
+  $ java -Djdk.virtualThreadScheduler.parallelism=4 -Dduration=20 ../jfr/PinningMonitor.java VTReentrantLockExample.java
+
+  $ cd vthreads/clinit
+  $ java -Duse_vthreads=true -Dsummary_interval=10 ../jfr/PinningMonitor.java TestClassInit.java
+
+  The experiment source is compiled with the javac of the running JDK and its main method
+  is invoked in the same JVM, so all system properties apply to it. If the JVM runs with
+  --enable-preview the experiment is compiled with preview features enabled.
+
+  Recorded events
+
+    jdk.VirtualThreadPinned        a virtual thread parked or blocked while pinned
+    jdk.VirtualThreadSubmitFailed  the scheduler rejected a virtual thread
+    jdk.ThreadPark                 any thread parked (LockSupport.park)
+
+  Settings (system properties):
+
+    -Dthreshold_ms=<n>        minimum duration of recorded pinned and park events
+                              (default 20 like the JFR default profile)
+    -Dsummary_interval=<s>    also print the summary every s seconds (default 0 = off)
+    -Dtop=<n>                 number of stack traces per event type in the summary (default 10)
+    -Dstack_depth=<n>         number of top frames that identify a stack trace (default 12)
+*/
+
+public class PinningMonitor {
+
+    public static final String PINNED = "jdk.VirtualThreadPinned";
+    public static final String SUBMIT_FAILED = "jdk.VirtualThreadSubmitFailed";
+    public static final String PARK = "jdk.ThreadPark";
+
+    public static final Duration THRESHOLD = Duration.ofMillis(Long.getLong("threshold_ms", 20));
+    public static final int SUMMARY_INTERVAL_SECONDS = Integer.getInteger("summary_interval", 0);
+    public static final int TOP = Integer.getInteger("top", 10);
+    public static final int STACK_DEPTH = Integer.getInteger("stack_depth", 12);
+
+    static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws Throwable {
+        if (args.length < 1 || !args[0].endsWith(".java")) {
+            OUT.println("Usage: PinningMonitor <experiment>.java [<experiment args>]");
+            System.exit(1);
+        }
+        Class<?> experiment = compile(Path.of(args[0]));
+
+        EventStats pinned = new EventStats("Pinned virtual threads");
+        EventStats submitFailed = new EventStats("Failed virtual thread submits");
+        EventStats parked = new EventStats("Parked threads");
+
+        RecordingStream rs = new RecordingStream();
+        rs.enable(PINNED).withThreshold(THRESHOLD).withStackTrace();
+        rs.enable(SUBMIT_FAILED).withStackTrace();
+        rs.enable(PARK).withThreshold(THRESHOLD).withStackTrace();
+        rs.onEvent(PINNED, pinned::record);
+        rs.onEvent(SUBMIT_FAILED, submitFailed::record);
+        rs.onEvent(PARK, parked::record);
+        rs.startAsync();
+
+        List<EventStats> all = List.of(pinned, submitFailed, parked);
+        AtomicBoolean summarized = new AtomicBoolean();
+        Runnable finalSummary = () -> {
+            if (summarized.compareAndSet(false, true)) {
+                rs.stop(); // processes all events still in the stream
+                printSummary(all);
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(finalSummary));
+        if (SUMMARY_INTERVAL_SECONDS > 0) {
+            Thread.ofPlatform().daemon().name("PinningMonitor-summary").start(() -> {
+                while (true) {
+                    sleep(SUMMARY_INTERVAL_SECONDS * 1000L);
+                    printSummary(all);
+                }
+            });
+        }
+
+        Method main = experiment.getMethod("main", String[].class);
+        try {
+            main.invoke(null, (Object) Arrays.copyOfRange(args, 1, args.length));
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            finalSummary.run();
+        }
+    }
+
+    // Compiles the experiment into a temporary directory and loads its main class
+    static Class<?> compile(Path source) throws Exception {
+        Path classes = Files.createTempDirectory("PinningMonitor");
+        List<String> options = new ArrayList<>(List.of("-d", classes.toString(), "-proc:none"));
+        if (ManagementFactory.getRuntimeMXBean().getInputArguments().contains("--enable-preview")) {
+            options.addAll(List.of("--enable-preview", "--release", Integer.toString(Runtime.version().feature())));
+        }
+        options.add(source.toString());
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac.run(null, null, null, options.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("Compilation of " + source + " failed");
+        }
+        String className = source.getFileName().toString().replaceFirst("\\.java$", "");
+        ClassLoader loader = new URLClassLoader(new URL[] { classes.toUri().toURL() },
+                                                PinningMonitor.class.getClassLoader());
+        return loader.loadClass(className);
+    }
+
+    // Counts and durations of the events of one type, grouped by stack trace
+    static class EventStats {
+        final String title;
+        final Map<String, StackStats> byStack = new HashMap<>();
+        final Histogram all = new Histogram();
+
+        EventStats(String title) {
+            this.title = title;
+        }
+
+        synchronized void record(RecordedEvent e) {
+            long ns = e.getDuration().toNanos();
+            all.record(ns);
+            byStack.computeIfAbsent(key(e), StackStats::new).durations.record(ns);
+        }
+
+        synchronized void print() {
+            OUT.println(title + ": " + all.count + " events, total " + ms(all.total) + " ms, p99 "
+                        + ms(all.percentile(0.99)) + " ms, max " + ms(all.max) + " ms");
+            byStack.values().stream()
+                .sorted(Comparator.comparingLong((StackStats s) -> s.durations.total).reversed())
+                .limit(TOP)
+                .forEach(s -> {
+                    Histogram h = s.durations;
+                    OUT.println("  " + h.count + " events, total " + ms(h.total) + " ms, p99 "
+                                + ms(h.percentile(0.99)) + " ms, max " + ms(h.max) + " ms");
+                    OUT.println(s.stack.indent(6).stripTrailing());
+                });
+        }
+    }
+
+    record StackStats(String stack, Histogram durations) {
+        StackStats(String stack) {
+            this(stack, new Histogram());
+        }
+    }
+
+    // Event specific details followed by the top frames
+    static String key(RecordedEvent e) {
+        StringBuilder sb = new StringBuilder();
+        for (String field : List.of("pinnedReason", "blockingOperation", "parkedClass", "exceptionMessage")) {
+            if (e.hasField(field) && e.getValue(field) != null) {
+                Object v = e.getValue(field);
+                String s = v instanceof jdk.jfr.consumer.RecordedClass c ? c.getName() : v.toString();
+                sb.append(field).append(": ").append(s).append('\n');
+            }
+        }
+        RecordedStackTrace st = e.getStackTrace();
+        if (st != null) {
+            sb.append(st.getFrames().stream().limit(STACK_DEPTH)
+                      .map(PinningMonitor::frame)
+                      .collect(Collectors.joining("\n")));
+        }
+        return sb.toString();
+    }
+
+    static String frame(RecordedFrame f) {
+        return f.getMethod().getType().getName() + "." + f.getMethod().getName() + ":" + f.getLineNumber();
+    }
+
+    static void printSummary(List<EventStats> all) {
+        OUT.println("==== PinningMonitor summary (threshold " + THRESHOLD.toMillis() + " ms) ====");
+        all.forEach(EventStats::print);
+    }
+
+    // Log-linear histogram of durations in ns with 8 sub-buckets per power of 2
+    // (max error 12.5%). Constant size regardless of the number of events.
+    static class Histogram {
+        final long[] buckets = new long[64 * 8];
+        long count;
+        long total;
+        long max;
+
+        void record(long ns) {
+            ns = Math.max(ns, 0);
+            buckets[index(ns)]++;
+            count++;
+            total += ns;
+            max = Math.max(max, ns);
+        }
+
+        static int index(long ns) {
+            if (ns < 8) return (int) ns;
+            int exp = 63 - Long.numberOfLeadingZeros(ns);
+            return (exp - 2) * 8 + (int) ((ns >>> (exp - 3)) & 7);
+        }
+
+        static long upperBound(int index) {
+            if (index < 8) return index;
+            int shift = index / 8 - 1;
+            return ((8L + index % 8) << shift) + (1L << shift) - 1;
+        }
+
+        long percentile(double p) {
+            long target = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    static String ms(long ns) {
+        return String.format("%.1f", ns / 1e6);
+    }
+
+    static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) { /* Ignored */ }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+  Runs VTReentrantLockExample.java in forked JVMs for every combination of lock kind,
+  writer count and carrier parallelism and prints a table with the critical sections per
+  second and the spread of the per writer counts.
+
+  $ cd vthreads/locking_stackdump
+  $ java LockStrategySuite.java
+
+  Settings (system properties):
+
+    -Dlocks=sync,unfair,fair,stamped,atomic,striped
+    -Dwriter_counts=4,40,400
+    -Dparallelisms=1,4,<available processors>     also used as maxPoolSize
+    -Dduration=10                                 seconds per run
+    -Dwork=65536                                  iterations of consumeCPU per critical section
+    -Dout=lock_strategies.txt                     file the table is written to
+
+  The cv column is the coefficient of variation of the per writer counts. 0 means all
+  writers entered the critical section equally often.
+*/
+
+public class LockStrategySuite {
+
+    public static final String EXAMPLE = "VTReentrantLockExample.java";
+
+    static final Pattern THROUGHPUT = Pattern.compile("Throughput: ([\\d.]+) critical sections/s");
+    static final Pattern FAIRNESS = Pattern.compile("Fairness: min (\\d+) max (\\d+) mean ([\\d.]+) cv ([\\d.]+)");
+
+    static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws Exception {
+        String[] locks = System.getProperty("locks", "sync,unfair,fair,stamped,atomic,striped").split(",");
+        String[] writerCounts = System.getProperty("writer_counts", "4,40,400").split(",");
+        String[] parallelisms = System.getProperty("parallelisms",
+                                                   "1,4," + Runtime.getRuntime().availableProcessors()).split(",");
+
+        List<String> table = new ArrayList<>();
+        String format = "%-8s %8s %12s %16s %10s %10s %7s";
+        table.add(String.format(format, "lock", "writers", "parallelism", "cs/s", "min", "max", "cv"));
+        for (String parallelism : parallelisms) {
+            for (String writers : writerCounts) {
+                for (String lock : locks) {
+                    String[] r = runExample(lock, writers, parallelism);
+                    String row = r == null ?
+                        String.format("%-8s %8s %12s failed", lock, writers, parallelism) :
+                        String.format(format, lock, writers, parallelism, r[0], r[1], r[2], r[3]);
+                    OUT.println(row);
+                    table.add(row);
+                }
+            }
+        }
+
+        table.forEach(OUT::println);
+        Path out = Path.of(System.getProperty("out", "lock_strategies.txt"));
+        Files.write(out, table);
+        OUT.println("Table written to " + out.toAbsolutePath());
+    }
+
+    // Returns throughput, min, max and cv or null if the run failed
+    static String[] runExample(String lock, String writers, String parallelism)
+            throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-Djdk.virtualThreadScheduler.parallelism=" + parallelism);
+        cmd.add("-Djdk.virtualThreadScheduler.maxPoolSize=" + parallelism);
+        cmd.add("-Dlock=" + lock);
+        cmd.add("-Dwriters=" + writers);
+        cmd.add("-Dduration=" + System.getProperty("duration", "10"));
+        cmd.add("-Dwork=" + System.getProperty("work", "65536"));
+        cmd.add(EXAMPLE);
+        OUT.println("$ " + String.join(" ", cmd));
+
+        String throughput = null;
+        String[] fairness = null;
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                OUT.println("  " + line);
+                Matcher m;
+                if ((m = THROUGHPUT.matcher(line)).find()) {
+                    throughput = m.group(1);
+                } else if ((m = FAIRNESS.matcher(line)).find()) {
+                    fairness = new String[] { m.group(1), m.group(2), m.group(4) };
+                }
+            }
+        }
+        if (p.waitFor() != 0 || throughput == null || fairness == null) {
+            return null;
+        }
+        return new String[] { throughput, fairness[0], fairness[1], fairness[2] };
+    }
+}
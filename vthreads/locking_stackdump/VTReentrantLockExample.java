@@ -1,69 +1,155 @@
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 
 // jdk21_nb/bin/java -Djdk.virtualThreadScheduler.maxPoolSize=4 -Djdk.virtualThreadScheduler.parallelism=4 VTReentrantLockExample.java
 
 // jdk21_nb/bin/jcmd jdk.compiler/com.sun.tools.javac.launcher.Main Thread.dump_to_file -overwrite out.txt
 
+// Settings (system properties):
+//
+//   -Dlock=<kind>      sync (default), unfair, fair, stamped, atomic, striped
+//                      sync and unfair correspond to USE_SYNC = true/false in earlier versions
+//   -Dwriters=<n>      number of virtual threads entering the critical section (default 40)
+//   -Dwork=<n>         iterations of consumeCPU per critical section (default 4M)
+//   -Dstripes=<n>      number of locks for -Dlock=striped (default 8)
+//   -Dduration=<s>     seconds until the writers are stopped (default 600)
+//
+// When the writers are stopped the number of critical sections per second and the spread
+// of the per writer counts is printed. LockStrategySuite.java runs this for all lock kinds
+// with varying writer counts and carrier parallelism.
+//
+// atomic is a lock-free variant: the current BlackholeCounter is swapped with
+// AtomicReference.getAndSet() which gives every writer a counter of its own to consume.
+// striped uses one lock and one BlackholeCounter per stripe, writer w uses stripe w % n.
+
 public class VTReentrantLockExample {
 
     public static final long K = 1024;
     public static final long M = 1024*K;
     public static final long G = 1024*M;
 
-    public static final boolean USE_SYNC = true;
-    public static final ReentrantLock LOCK = new ReentrantLock();
+    public static final String LOCK_KIND = System.getProperty("lock", "sync");
+    public static final int WRITERS = Integer.getInteger("writers", 40);
+    public static final long WORK = Long.getLong("work", 4*M);
+    public static final int STRIPE_CNT = Integer.getInteger("stripes", 8);
+    public static final int DURATION_SECONDS = Integer.getInteger("duration", 600);
+
+    public static final ReentrantLock LOCK = new ReentrantLock(LOCK_KIND.equals("fair"));
+    public static final StampedLock STAMPED_LOCK = new StampedLock();
+    public static final ReentrantLock[] STRIPED_LOCKS = new ReentrantLock[STRIPE_CNT];
 
     public static volatile BlackholeCounter BHC;
+    public static final AtomicReference<BlackholeCounter> BHC_REF = new AtomicReference<>();
+    public static final BlackholeCounter[] STRIPED_BHC = new BlackholeCounter[STRIPE_CNT];
 
     public static class BlackholeCounter {
         public volatile long counter = 1;
     }
 
+    public interface CriticalSection {
+        void enter(int writer);
+    }
+
     public static void main(String[] args) {
-        final int writers = 40;
+        final int writers = WRITERS;
         final AtomicBoolean stop = new AtomicBoolean();
+        final long[] counts = new long[writers];
         //        ExecutorService executorService = Executors.newCachedThreadPool();
         ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
         BHC = new BlackholeCounter();
+        BHC_REF.set(new BlackholeCounter());
+        for (int s = 0; s < STRIPE_CNT; s++) {
+            STRIPED_LOCKS[s] = new ReentrantLock();
+            STRIPED_BHC[s] = new BlackholeCounter();
+        }
+        CriticalSection cs = criticalSection(LOCK_KIND);
+        long start = System.nanoTime();
         for (int i = 0; i < writers; i++) {
-            if (USE_SYNC) {
-                executorService.execute(() -> {
-                        while (!stop.get()) {
-                            synchronized (LOCK) {
-                                BlackholeCounter old = BHC;
-                                BHC = new BlackholeCounter();
-                                consumeCPU(old);
-                            }
-                        }
-                    });
-            } else {
-                executorService.execute(() -> {
-                        while (!stop.get()) {
-                            LOCK.lock();
-                            BlackholeCounter old = BHC;
-                            BHC = new BlackholeCounter();
-                            consumeCPU(old);
-                            LOCK.unlock();
-                        }
-                    });
-            }
+            final int w = i;
+            executorService.execute(() -> {
+                    long count = 0;
+                    while (!stop.get()) {
+                        cs.enter(w);
+                        count++;
+                    }
+                    counts[w] = count;
+                });
         }
         try {
+            executorService.awaitTermination(DURATION_SECONDS, TimeUnit.SECONDS);
+            stop.set(true);
+            executorService.shutdown();
             executorService.awaitTermination(600, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        long end = System.nanoTime();
+        report(counts, end - start);
+    }
+
+    public static CriticalSection criticalSection(String kind) {
+        return switch (kind) {
+        case "sync" -> w -> {
+                synchronized (LOCK) {
+                    BlackholeCounter old = BHC;
+                    BHC = new BlackholeCounter();
+                    consumeCPU(old);
+                }
+            };
+        case "unfair", "fair" -> w -> {
+                LOCK.lock();
+                BlackholeCounter old = BHC;
+                BHC = new BlackholeCounter();
+                consumeCPU(old);
+                LOCK.unlock();
+            };
+        case "stamped" -> w -> {
+                long stamp = STAMPED_LOCK.writeLock();
+                BlackholeCounter old = BHC;
+                BHC = new BlackholeCounter();
+                consumeCPU(old);
+                STAMPED_LOCK.unlockWrite(stamp);
+            };
+        case "atomic" -> w -> consumeCPU(BHC_REF.getAndSet(new BlackholeCounter()));
+        case "striped" -> w -> {
+                int s = w % STRIPE_CNT;
+                STRIPED_LOCKS[s].lock();
+                BlackholeCounter old = STRIPED_BHC[s];
+                STRIPED_BHC[s] = new BlackholeCounter();
+                consumeCPU(old);
+                STRIPED_LOCKS[s].unlock();
+            };
+        default -> throw new IllegalArgumentException("Unknown lock kind: " + kind);
+        };
     }
 
     public static void consumeCPU(BlackholeCounter bhc) {
-        while (bhc.counter < 4*M) {
+        while (bhc.counter < WORK) {
             bhc.counter += 1;
         }
     }
 
+    // Prints throughput and how evenly the critical sections were distributed over the writers
+    static void report(long[] counts, long nanos) {
+        long total = Arrays.stream(counts).sum();
+        long min = Arrays.stream(counts).min().orElse(0);
+        long max = Arrays.stream(counts).max().orElse(0);
+        double mean = (double) total / counts.length;
+        double variance = Arrays.stream(counts).mapToDouble(c -> (c - mean) * (c - mean)).sum() / counts.length;
+        String parallelism = System.getProperty("jdk.virtualThreadScheduler.parallelism",
+                                                Integer.toString(Runtime.getRuntime().availableProcessors()));
+        System.out.printf(Locale.ROOT, "Settings: lock=%s writers=%d parallelism=%s work=%d%n",
+                          LOCK_KIND, counts.length, parallelism, WORK);
+        System.out.printf(Locale.ROOT, "Throughput: %.1f critical sections/s%n", total * 1e9 / nanos);
+        System.out.printf(Locale.ROOT, "Fairness: min %d max %d mean %.1f cv %.3f%n",
+                          min, max, mean, mean == 0 ? 0 : Math.sqrt(variance) / mean);
+    }
 }
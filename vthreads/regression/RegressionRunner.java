@@ -0,0 +1,445 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+  Runs the vthread experiments against one or more local JDK homes, saves the results in
+  machine readable form and compares them with a baseline to find regressions after a
+  JDK upgrade.
+
+  $ cd vthreads/regression
+  $ java -Djdks=/opt/jdk-21.0.3,/opt/jdk-21.0.5 RegressionRunner.java
+
+  Every experiment of the suite below is run with the source launcher of each JDK in its
+  own directory, like it is run by hand. The directories are resolved against -Droot, the
+  vthreads directory. It defaults to the parent of the directory this source file is in,
+  so the runner can be started from any directory. Experiments that need a newer JDK than the one
+  under test are skipped. The metrics of a run are parsed from the output of the
+  experiment. If an experiment reports a metric once per iteration, the median without
+  the first (warm-up) iteration is taken.
+
+  Results are written to the -Dresults directory:
+
+    <timestamp>-<java version>.json   one file per JDK with the JDK version, vendor, vm,
+                                      the command line (flags) and the metrics of every
+                                      experiment
+    results.csv                       one row per metric, rows of all runs are appended
+
+  Baseline
+
+  With -Dbaseline=<file> (a CSV in the format of results.csv) every JDK is compared with
+  the baseline. Without it the JDKs after the first are compared with the first. A metric
+  is flagged as REGRESSION if it is worse than the baseline by more than -Dthreshold
+  percent. The exit code is 1 if there was a regression. -Dsave_baseline=true writes the
+  results of the last JDK to the baseline file.
+
+  The JMH module in ../benchmark/jmh is the one experiment with a build file, it is not run
+  by this runner.
+
+  Settings (system properties):
+
+    -Djdks=<home>,...           JDK homes to test (default: the JDK running this)
+    -Droot=<dir>                directory with the experiment directories (default: see above)
+    -Dexperiments=<name>,...    experiments to run (default: all, see SUITE)
+    -Dresults=results           directory for the results
+    -Dbaseline=<file>           baseline CSV
+    -Dthreshold=10              tolerated change in percent
+    -Dsave_baseline=true        save the results of the last JDK as baseline
+    -Dtimeout=600               seconds until an experiment is killed
+*/
+
+public class RegressionRunner {
+
+    record Metric(String name, Pattern pattern, boolean higherIsBetter) {
+        Metric(String name, String regex, boolean higherIsBetter) {
+            this(name, Pattern.compile(regex), higherIsBetter);
+        }
+    }
+
+    // {feature} in jvm args is replaced with the feature version of the JDK under test
+    record Experiment(String name, String dir, int minFeature, List<String> jvmArgs, String source,
+                      List<String> args, List<Metric> metrics) {}
+
+    static final List<String> DONTINLINE = List.of("-XX:CompileCommand=quiet",
+                                                   "-XX:CompileCommand=dontinline,*::*dontinline");
+    static final List<String> HEAP = List.of("-XX:+UseParallelGC", "-Xmx1200m", "-Xmn1g");
+    static final List<String> PREVIEW = List.of("--enable-preview", "--source", "{feature}");
+
+    static final Metric STARTED_MS = new Metric("start_ms", "All threads started in (\\d+) ms", false);
+    static final Metric FINISHED_MS = new Metric("finish_ms", "All threads finished in (\\d+) ms", false);
+    static final Metric CONNECT_MS = new Metric("connect_ms", "connections established in (\\d+) ms", false);
+    static final Metric ROUND_TRIPS = new Metric("round_trips_per_s", "round trips in \\d+ ms \\((\\d+)/s\\)", true);
+    static final Metric RTT_P99_US = new Metric("rtt_p99_us", "rtt p50 [\\d.]+ us, p99 ([\\d.]+) us", false);
+    static final Metric THROUGHPUT = new Metric("critical_sections_per_s", "Throughput: ([\\d.]+)", true);
+
+    static final List<Experiment> SUITE = List.of(
+        new Experiment("trivial_vthreads", "benchmark", 21, concat(HEAP, DONTINLINE, List.of("-Dlatencies=true")),
+                       "TrivialVthreadMicroBenchmark.java", List.of("vthreads", "nogc", "100000"),
+                       List.of(STARTED_MS, FINISHED_MS,
+                               new Metric("spawn_p99_us", "Spawn latency.*p99 (\\d+) us", false),
+                               new Metric("completion_p99_us", "Completion latency.*p99 (\\d+) us", false))),
+        new Experiment("trivial_vthreads_gc", "benchmark", 21, concat(HEAP, DONTINLINE),
+                       "TrivialVthreadMicroBenchmark.java", List.of("vthreads", "gc", "100000"),
+                       List.of(STARTED_MS, FINISHED_MS)),
+        new Experiment("trivial_pthreads", "benchmark", 21, concat(HEAP, DONTINLINE, List.of("-Dhalt=true")),
+                       "TrivialVthreadMicroBenchmark.java", List.of("pthreads", "nogc", "10000"),
+                       List.of(STARTED_MS, FINISHED_MS,
+                               new Metric("terminated_ms", "Terminated in (\\d+) ms", false))),
+        new Experiment("echo_vthreads", "benchmark", 21, List.of("-Diterations=5"),
+                       "LoopbackEchoBenchmark.java", List.of("vthreads", "5000"),
+                       List.of(CONNECT_MS, ROUND_TRIPS, RTT_P99_US)),
+        new Experiment("echo_nio", "benchmark", 21, List.of("-Diterations=5"),
+                       "LoopbackEchoBenchmark.java", List.of("nio", "5000"),
+                       List.of(CONNECT_MS, ROUND_TRIPS, RTT_P99_US)),
+        new Experiment("lock_unfair", "locking_stackdump", 21,
+                       List.of("-Dlock=unfair", "-Dduration=10", "-Dwork=65536"),
+                       "VTReentrantLockExample.java", List.of(), List.of(THROUGHPUT)),
+        new Experiment("lock_sync", "locking_stackdump", 21,
+                       List.of("-Dlock=sync", "-Dduration=10", "-Dwork=65536"),
+                       "VTReentrantLockExample.java", List.of(), List.of(THROUGHPUT)),
+        new Experiment("clinit_lazy", "clinit", 21,
+                       List.of("-Duse_vthreads=true", "-Dendpoint=lazy", "-Dconc_requests=100", "-Dduration=10"),
+                       "TestClassInit.java", List.of(),
+                       List.of(new Metric("rps", "rps=([\\d.]+)", true),
+                               new Metric("p99_ms", "p99_ms=([\\d.]+)", false))),
+        new Experiment("structured_fanout", "structured", 25, PREVIEW,
+                       "StructuredFanOutBenchmark.java", List.of("sts", "1000", "1"),
+                       List.of(new Metric("tree_ms", "subtasks in ([\\d.]+) ms", false))),
+        new Experiment("structured_hedged", "structured", 25, concat(PREVIEW, List.of("-Dwidths=128", "-Dtrials=20")),
+                       "StructuredCancellationBenchmark.java", List.of("hedged"),
+                       List.of(new Metric("interrupted_p50_us", "interrupted (\\d+) /", false),
+                               new Metric("closed_p50_us", "closed (\\d+) /", false))));
+
+    static final String[] CSV_COLUMNS = { "timestamp", "java_version", "vendor", "experiment", "metric", "value",
+                                          "higher_is_better", "exit_code", "command" };
+
+    static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws Exception {
+        String[] jdks = System.getProperty("jdks", System.getProperty("java.home")).split(",");
+        List<String> selected = System.getProperty("experiments") == null ? null :
+            Arrays.asList(System.getProperty("experiments").split(","));
+        Path resultsDir = Path.of(System.getProperty("results", "results"));
+        double threshold = Double.parseDouble(System.getProperty("threshold", "10"));
+        long timeoutSeconds = Long.getLong("timeout", 600);
+        Path root = System.getProperty("root") == null ? defaultRoot() : Path.of(System.getProperty("root"));
+        Files.createDirectories(resultsDir);
+        OUT.println("Experiments in " + root.toAbsolutePath().normalize());
+
+        Map<String, Double> baseline = null;
+        Path baselineFile = System.getProperty("baseline") == null ? null : Path.of(System.getProperty("baseline"));
+        if (baselineFile != null && Files.exists(baselineFile)) {
+            baseline = readCsv(baselineFile);
+            OUT.println("Baseline: " + baselineFile.toAbsolutePath());
+        }
+
+        boolean regression = false;
+        List<String> lastRows = null;
+        for (String home : jdks) {
+            Jdk jdk = Jdk.probe(Path.of(home));
+            OUT.println("JDK " + jdk.version() + " (" + jdk.vendor() + ", " + jdk.vm() + ") in " + jdk.home());
+            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+
+            List<Run> runs = new ArrayList<>();
+            for (Experiment e : SUITE) {
+                if (selected != null && !selected.contains(e.name())) continue;
+                if (jdk.feature() < e.minFeature()) {
+                    OUT.println("Skipping " + e.name() + ", needs jdk " + e.minFeature());
+                    continue;
+                }
+                runs.add(run(jdk, root, e, timeoutSeconds));
+            }
+
+            List<String> rows = csvRows(timestamp, jdk, runs);
+            Path json = resultsDir.resolve(timestamp + "-" + jdk.version().replaceAll("[^\\w.-]", "_") + ".json");
+            Files.writeString(json, toJson(timestamp, jdk, runs));
+            Path csv = resultsDir.resolve("results.csv");
+            if (!Files.exists(csv)) {
+                Files.writeString(csv, String.join(",", CSV_COLUMNS) + "\n");
+            }
+            Files.write(csv, rows, StandardOpenOption.APPEND);
+            OUT.println("Results written to " + json.toAbsolutePath() + " and " + csv.toAbsolutePath());
+
+            if (baseline != null) {
+                regression |= compare(baseline, runs, threshold);
+            } else {
+                // Compare the following JDKs with the first one
+                baseline = metricsByKey(runs);
+            }
+            lastRows = rows;
+        }
+
+        if (Boolean.getBoolean("save_baseline") && lastRows != null) {
+            Path file = baselineFile != null ? baselineFile : resultsDir.resolve("baseline.csv");
+            List<String> lines = new ArrayList<>();
+            lines.add(String.join(",", CSV_COLUMNS));
+            lines.addAll(lastRows);
+            Files.write(file, lines);
+            OUT.println("Baseline written to " + file.toAbsolutePath());
+        }
+        if (regression) {
+            System.exit(1);
+        }
+    }
+
+    record Jdk(Path home, String version, String vendor, String vm, int feature) {
+        // Reads the system properties of the JDK
+        static Jdk probe(Path home) throws IOException, InterruptedException {
+            Process p = new ProcessBuilder(java(home).toString(), "-XshowSettings:properties", "-version")
+                .redirectErrorStream(true).start();
+            Map<String, String> props = new LinkedHashMap<>();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int eq = line.indexOf(" = ");
+                    if (eq > 0) props.putIfAbsent(line.substring(0, eq).trim(), line.substring(eq + 3).trim());
+                }
+            }
+            if (p.waitFor() != 0 || !props.containsKey("java.specification.version")) {
+                throw new IllegalArgumentException("Not a JDK home: " + home);
+            }
+            return new Jdk(home, props.get("java.runtime.version"), props.get("java.vendor"),
+                           props.get("java.vm.name"), Integer.parseInt(props.get("java.specification.version")));
+        }
+    }
+
+    // Result of one experiment
+    static class Run {
+        final Experiment experiment;
+        final List<String> command;
+        String exitCode;
+        double seconds;
+        final Map<String, List<Double>> values = new LinkedHashMap<>();
+
+        Run(Experiment experiment, List<String> command) {
+            this.experiment = experiment;
+            this.command = command;
+        }
+
+        // Median without the first (warm-up) value, null if the metric was not found
+        Double metric(Metric m) {
+            List<Double> v = values.getOrDefault(m.name(), List.of());
+            if (v.isEmpty()) return null;
+            List<Double> sorted = new ArrayList<>(v.size() > 1 ? v.subList(1, v.size()) : v);
+            Collections.sort(sorted);
+            return sorted.get(sorted.size() / 2);
+        }
+    }
+
+    // The parent of the directory of this source file (or of the directory of the class
+    // file when compiled with javac). Falls back to .. if the location is not known.
+    static Path defaultRoot() {
+        CodeSource cs = RegressionRunner.class.getProtectionDomain().getCodeSource();
+        if (cs != null && cs.getLocation() != null) {
+            try {
+                Path location = Path.of(cs.getLocation().toURI()).toAbsolutePath().normalize();
+                Path dir = Files.isDirectory(location) ? location : location.getParent();
+                if (dir != null && dir.getParent() != null) {
+                    return dir.getParent();
+                }
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // Not a file location
+            }
+        }
+        return Path.of("..");
+    }
+
+    static Run run(Jdk jdk, Path root, Experiment e, long timeoutSeconds) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(java(jdk.home()).toString());
+        for (String arg : e.jvmArgs()) {
+            cmd.add(arg.replace("{feature}", Integer.toString(jdk.feature())));
+        }
+        cmd.add(e.source());
+        cmd.addAll(e.args());
+        OUT.println("$ (cd " + root.resolve(e.dir()) + " && " + String.join(" ", cmd) + ")");
+
+        Run run = new Run(e, cmd);
+        long start = System.nanoTime();
+        Process p = new ProcessBuilder(cmd).directory(root.resolve(e.dir()).toFile())
+            .redirectErrorStream(true).start();
+        Thread reader = Thread.ofPlatform().start(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        OUT.println("  " + line);
+                        for (Metric m : e.metrics()) {
+                            Matcher matcher = m.pattern().matcher(line);
+                            if (matcher.find()) {
+                                synchronized (run) {
+                                    run.values.computeIfAbsent(m.name(), k -> new ArrayList<>())
+                                        .add(Double.parseDouble(matcher.group(1)));
+                                }
+                            }
+                        }
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            });
+        if (p.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+            run.exitCode = Integer.toString(p.exitValue());
+        } else {
+            p.destroyForcibly().waitFor();
+            run.exitCode = "timeout";
+        }
+        reader.join();
+        run.seconds = (System.nanoTime() - start) / 1e9;
+        return run;
+    }
+
+    static Map<String, Double> metricsByKey(List<Run> runs) {
+        Map<String, Double> metrics = new LinkedHashMap<>();
+        for (Run r : runs) {
+            for (Metric m : r.experiment.metrics()) {
+                Double v = r.metric(m);
+                if (v != null) metrics.put(r.experiment.name() + "/" + m.name(), v);
+            }
+        }
+        return metrics;
+    }
+
+    // Prints the comparison with the baseline, returns true if there was a regression
+    static boolean compare(Map<String, Double> baseline, List<Run> runs, double threshold) {
+        boolean regression = false;
+        String format = "%-22s %-24s %12s %12s %9s  %s";
+        OUT.println(String.format(format, "experiment", "metric", "baseline", "current", "change", ""));
+        for (Run r : runs) {
+            for (Metric m : r.experiment.metrics()) {
+                Double base = baseline.get(r.experiment.name() + "/" + m.name());
+                Double current = r.metric(m);
+                String flag;
+                String change = "-";
+                if (current == null) {
+                    flag = "MISSING (exit code " + r.exitCode + ")";
+                    regression = true;
+                } else if (base == null || base == 0) {
+                    flag = "no baseline";
+                } else {
+                    double percent = (current - base) * 100 / base;
+                    double worse = m.higherIsBetter() ? -percent : percent;
+                    change = String.format(Locale.ROOT, "%+.1f%%", percent);
+                    flag = worse > threshold ? "REGRESSION" : worse < -threshold ? "improved" : "";
+                    regression |= worse > threshold;
+                }
+                OUT.println(String.format(format, r.experiment.name(), m.name(), base == null ? "-" : format(base),
+                                          current == null ? "-" : format(current), change, flag));
+            }
+        }
+        return regression;
+    }
+
+    static List<String> csvRows(String timestamp, Jdk jdk, List<Run> runs) {
+        List<String> rows = new ArrayList<>();
+        for (Run r : runs) {
+            for (Metric m : r.experiment.metrics()) {
+                Double v = r.metric(m);
+                rows.add(String.join(",", timestamp, csv(jdk.version()), csv(jdk.vendor()), r.experiment.name(),
+                                     m.name(), v == null ? "" : format(v), Boolean.toString(m.higherIsBetter()),
+                                     r.exitCode, csv(String.join(" ", r.command))));
+            }
+        }
+        return rows;
+    }
+
+    // experiment/metric -> value of a CSV in the format of results.csv
+    static Map<String, Double> readCsv(Path file) throws IOException {
+        Map<String, Double> metrics = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            // The command is the last column and the only one that can contain commas
+            String[] cols = line.split(",", CSV_COLUMNS.length);
+            if (cols.length < CSV_COLUMNS.length || cols[0].equals("timestamp") || cols[5].isEmpty()) continue;
+            metrics.put(cols[3] + "/" + cols[4], Double.parseDouble(cols[5]));
+        }
+        return metrics;
+    }
+
+    static String toJson(String timestamp, Jdk jdk, List<Run> runs) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"timestamp\": ").append(json(timestamp)).append(",\n");
+        sb.append("  \"jdk\": {\"home\": ").append(json(jdk.home().toString()))
+            .append(", \"version\": ").append(json(jdk.version()))
+            .append(", \"vendor\": ").append(json(jdk.vendor()))
+            .append(", \"vm\": ").append(json(jdk.vm()))
+            .append(", \"feature\": ").append(jdk.feature()).append("},\n");
+        sb.append("  \"host\": {\"os\": ").append(json(System.getProperty("os.name") + " " + System.getProperty("os.version")))
+            .append(", \"arch\": ").append(json(System.getProperty("os.arch")))
+            .append(", \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append("},\n");
+        sb.append("  \"experiments\": [");
+        for (int i = 0; i < runs.size(); i++) {
+            Run r = runs.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"name\": ").append(json(r.experiment.name()))
+                .append(", \"command\": [");
+            for (int j = 0; j < r.command.size(); j++) {
+                sb.append(j == 0 ? "" : ", ").append(json(r.command.get(j)));
+            }
+            sb.append("], \"exit_code\": ").append(json(r.exitCode))
+                .append(", \"seconds\": ").append(format(r.seconds))
+                .append(",\n     \"metrics\": {");
+            List<Metric> metrics = r.experiment.metrics();
+            for (int j = 0; j < metrics.size(); j++) {
+                Metric m = metrics.get(j);
+                Double v = r.metric(m);
+                sb.append(j == 0 ? "" : ", ").append(json(m.name())).append(": ")
+                    .append(v == null ? "null" : format(v));
+            }
+            sb.append("},\n     \"values\": {");
+            int j = 0;
+            for (Map.Entry<String, List<Double>> e : r.values.entrySet()) {
+                sb.append(j++ == 0 ? "" : ", ").append(json(e.getKey())).append(": [");
+                for (int k = 0; k < e.getValue().size(); k++) {
+                    sb.append(k == 0 ? "" : ", ").append(format(e.getValue().get(k)));
+                }
+                sb.append("]");
+            }
+            sb.append("}}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    static String format(double v) {
+        return v == Math.rint(v) ? Long.toString((long) v) : String.format(Locale.ROOT, "%.2f", v);
+    }
+
+    static String json(String s) {
+        return s == null ? "null" : "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    static String csv(String s) {
+        return s == null ? "" : s.replace(",", ";");
+    }
+
+    static Path java(Path home) {
+        return home.resolve("bin").resolve("java");
+    }
+
+    @SafeVarargs
+    static List<String> concat(List<String>... lists) {
+        List<String> all = new ArrayList<>();
+        for (List<String> l : lists) {
+            all.addAll(l);
+        }
+        return all;
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/*
+  Runs one of the vthread experiments with a background thread that samples the virtual
+  thread scheduler and the cpu time of its carrier threads and writes a time series to a
+  CSV file. This shows how saturated the scheduler was in the phases the experiment reports.
+
+  $ cd vthreads/benchmark
+  $ java ../scheduler/SchedulerSampler.java TrivialVthreadMicroBenchmark.java vthreads nogc 100000
+
+  $ cd vthreads/locking_stackdump
+  $ java -Djdk.virtualThreadScheduler.parallelism=4 -Dduration=20 ../scheduler/SchedulerSampler.java VTReentrantLockExample.java
+
+  Like with ../jfr/PinningMonitor.java the experiment is compiled with the javac of the running
+  JDK and its main method is invoked in the same JVM. Every line the experiment prints to
+  System.out is also put into the events column of the next sample, so phase boundaries can be
+  found in the CSV.
+
+  Sources of the columns
+
+    parallelism, pool_size, mounted, queued_vthreads
+        the jdk.management.VirtualThreadSchedulerMXBean (jdk 24 and later). Its attributes are
+        read generically from the platform MBeanServer, so this also runs on jdk 21.
+    active, running, queued_submissions, queued_tasks, steals
+        the ForkJoinPool of the default scheduler. It is private in java.lang.VirtualThread,
+        so these need --add-opens java.base/java.lang=ALL-UNNAMED. parallelism and pool_size
+        are also taken from the pool if the MXBean is not available.
+    carriers, carrier_cpu_ms, carrier_util_pct
+        ThreadMXBean cpu time of the carrier threads since the previous sample.
+        carrier_util_pct is relative to the number of carriers, a carrier that is idle in
+        the pool is parked and uses no cpu.
+    process_cpu_pct
+        the OperatingSystemMXBean process cpu load
+
+  Columns that are not available are left empty. At the end a summary with the maximum pool
+  size and queue lengths is printed.
+
+  Settings (system properties):
+
+    -Dsample_ms=<n>   sampling interval (default 100)
+    -Dout=<file>      CSV file (default scheduler_samples.csv)
+*/
+
+public class SchedulerSampler {
+
+    public static final long SAMPLE_MS = Long.getLong("sample_ms", 100);
+    public static final String MXBEAN_NAME = "jdk.management:type=VirtualThreadScheduler";
+    public static final String CARRIER_CLASS = "jdk.internal.misc.CarrierThread";
+    public static final String[] COLUMNS = { "uptime_ms", "parallelism", "pool_size", "mounted", "queued_vthreads",
+                                             "active", "running", "queued_submissions", "queued_tasks", "steals",
+                                             "carriers", "carrier_cpu_ms", "carrier_util_pct", "process_cpu_pct",
+                                             "events" };
+
+    static final PrintStream OUT = System.out;
+
+    // Lines printed by the experiment since the last sample
+    static final ConcurrentLinkedQueue<String> events = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) throws Throwable {
+        if (args.length < 1 || !args[0].endsWith(".java")) {
+            OUT.println("Usage: SchedulerSampler <experiment>.java [<experiment args>]");
+            System.exit(1);
+        }
+        Class<?> experiment = compile(Path.of(args[0]));
+
+        Path out = Path.of(System.getProperty("out", "scheduler_samples.csv"));
+        Sampler sampler = new Sampler(new PrintWriter(Files.newBufferedWriter(out)));
+        OUT.println("SchedulerSampler: writing samples every " + SAMPLE_MS + " ms to " + out.toAbsolutePath());
+        if (sampler.pool == null) {
+            OUT.println("SchedulerSampler: no access to the scheduler pool,"
+                        + " run with --add-opens java.base/java.lang=ALL-UNNAMED for all columns");
+        }
+        System.setOut(new PrintStream(new LineTee(OUT), true));
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        Runnable stop = () -> {
+            if (stopped.compareAndSet(false, true)) {
+                sampler.stop();
+                OUT.println("SchedulerSampler: " + sampler.summary());
+                OUT.println("SchedulerSampler: samples written to " + out.toAbsolutePath());
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(stop));
+        sampler.start();
+
+        Method main = experiment.getMethod("main", String[].class);
+        try {
+            main.invoke(null, (Object) Arrays.copyOfRange(args, 1, args.length));
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            stop.run();
+        }
+    }
+
+    // Compiles the experiment into a temporary directory and loads its main class
+    static Class<?> compile(Path source) throws Exception {
+        Path classes = Files.createTempDirectory("SchedulerSampler");
+        List<String> options = new ArrayList<>(List.of("-d", classes.toString(), "-proc:none"));
+        if (ManagementFactory.getRuntimeMXBean().getInputArguments().contains("--enable-preview")) {
+            options.addAll(List.of("--enable-preview", "--release", Integer.toString(Runtime.version().feature())));
+        }
+        options.add(source.toString());
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac.run(null, null, null, options.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("Compilation of " + source + " failed");
+        }
+        String className = source.getFileName().toString().replaceFirst("\\.java$", "");
+        ClassLoader loader = new URLClassLoader(new URL[] { classes.toUri().toURL() },
+                                                SchedulerSampler.class.getClassLoader());
+        return loader.loadClass(className);
+    }
+
+    static class Sampler {
+        final PrintWriter csv;
+        final Thread thread;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName mxbean;
+        final ForkJoinPool pool = defaultScheduler();
+        final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        final ThreadGroup rootGroup;
+        volatile boolean running = true;
+
+        // State of the previous sample
+        long lastNanos;
+        long[] lastCarrierIds = new long[0];
+        long[] lastCarrierCpu = new long[0];
+
+        // Summary
+        int samples;
+        long maxPoolSize;
+        long maxQueued;
+        double utilSum;
+
+        Sampler(PrintWriter csv) throws Exception {
+            this.csv = csv;
+            ObjectName name = new ObjectName(MXBEAN_NAME);
+            this.mxbean = server.isRegistered(name) ? name : null;
+            ThreadGroup g = Thread.currentThread().getThreadGroup();
+            while (g.getParent() != null) {
+                g = g.getParent();
+            }
+            this.rootGroup = g;
+            this.thread = Thread.ofPlatform().daemon().name("SchedulerSampler").unstarted(this::run);
+        }
+
+        // The ForkJoinPool of the default scheduler or null if it is not accessible
+        static ForkJoinPool defaultScheduler() {
+            try {
+                Field f = Class.forName("java.lang.VirtualThread").getDeclaredField("DEFAULT_SCHEDULER");
+                f.setAccessible(true);
+                return f.get(null) instanceof ForkJoinPool pool ? pool : null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        void start() {
+            csv.println(String.join(",", COLUMNS));
+            lastNanos = System.nanoTime();
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) { /* Ignored */ }
+            sample(); // the final sample includes the last lines of the experiment
+            csv.close();
+        }
+
+        void run() {
+            long next = System.nanoTime();
+            while (running) {
+                next += SAMPLE_MS * 1_000_000;
+                long sleepNanos = next - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                sample();
+            }
+        }
+
+        synchronized void sample() {
+            long now = System.nanoTime();
+            String[] row = new String[COLUMNS.length];
+            Arrays.fill(row, "");
+            row[0] = Long.toString(ManagementFactory.getRuntimeMXBean().getUptime());
+
+            Long parallelism = null;
+            Long poolSize = null;
+            Long queued = null;
+            if (mxbean != null) {
+                parallelism = attribute("Parallelism");
+                poolSize = attribute("PoolSize");
+                row[3] = str(attribute("MountedVirtualThreadCount"));
+                queued = attribute("QueuedVirtualThreadCount");
+                row[4] = str(queued);
+            }
+            if (pool != null) {
+                if (parallelism == null) parallelism = (long) pool.getParallelism();
+                if (poolSize == null) poolSize = (long) pool.getPoolSize();
+                row[5] = Integer.toString(pool.getActiveThreadCount());
+                row[6] = Integer.toString(pool.getRunningThreadCount());
+                row[7] = Integer.toString(pool.getQueuedSubmissionCount());
+                row[8] = Long.toString(pool.getQueuedTaskCount());
+                row[9] = Long.toString(pool.getStealCount());
+                if (queued == null) queued = pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+            }
+            row[1] = str(parallelism);
+            row[2] = str(poolSize);
+
+            // Carrier cpu time since the previous sample. Carriers that started since then
+            // count from 0, carriers that terminated are not counted.
+            long[] ids = carrierIds();
+            long[] cpu = threads.getThreadCpuTime(ids);
+            long cpuDelta = 0;
+            for (int j = 0; j < ids.length; j++) {
+                if (cpu[j] < 0) continue;
+                int k = Arrays.binarySearch(lastCarrierIds, ids[j]);
+                cpuDelta += cpu[j] - (k >= 0 && lastCarrierCpu[k] >= 0 ? lastCarrierCpu[k] : 0);
+            }
+            long wallDelta = now - lastNanos;
+            double util = ids.length == 0 || wallDelta == 0 ? 0 : 100.0 * cpuDelta / wallDelta / ids.length;
+            row[10] = Integer.toString(ids.length);
+            row[11] = String.format(Locale.ROOT, "%.1f", cpuDelta / 1e6);
+            row[12] = String.format(Locale.ROOT, "%.1f", util);
+            row[13] = String.format(Locale.ROOT, "%.1f", Math.max(0, os.getProcessCpuLoad()) * 100);
+
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = events.poll()) != null) {
+                lines.add(line);
+            }
+            row[14] = quote(String.join(" | ", lines));
+            csv.println(String.join(",", row));
+            csv.flush();
+
+            lastNanos = now;
+            lastCarrierIds = ids;
+            lastCarrierCpu = cpu;
+            samples++;
+            if (poolSize != null) maxPoolSize = Math.max(maxPoolSize, poolSize);
+            if (queued != null) maxQueued = Math.max(maxQueued, queued);
+            utilSum += util;
+        }
+
+        // Sorted thread ids of the carrier threads
+        long[] carrierIds() {
+            Thread[] all = new Thread[rootGroup.activeCount() + 16];
+            int n = rootGroup.enumerate(all, true);
+            return Arrays.stream(all, 0, n)
+                .filter(t -> t.getClass().getName().equals(CARRIER_CLASS))
+                .mapToLong(Thread::threadId)
+                .sorted()
+                .toArray();
+        }
+
+        Long attribute(String name) {
+            try {
+                return ((Number) server.getAttribute(mxbean, name)).longValue();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        synchronized String summary() {
+            return String.format(Locale.ROOT, "%d samples, max pool size %d, max queued %d, mean carrier utilization %.1f%%",
+                                 samples, maxPoolSize, maxQueued, samples == 0 ? 0 : utilSum / samples);
+        }
+
+        static String str(Long value) {
+            return value == null ? "" : value.toString();
+        }
+
+        static String quote(String s) {
+            return s.isEmpty() ? "" : "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+    }
+
+    // Forwards output and collects the complete lines in events
+    static class LineTee extends OutputStream {
+        final OutputStream out;
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineTee(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            out.write(b);
+            collect(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            for (int i = off; i < off + len; i++) {
+                collect(b[i]);
+            }
+        }
+
+        void collect(int b) {
+            if (b == '\n') {
+                events.add(line.toString().stripTrailing());
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.StructuredTaskScope.Joiner;
+import java.util.concurrent.StructuredTaskScope.Subtask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/*
+  java --enable-preview --source 25 StructuredCancellationBenchmark.java <hedged|quorum>
+
+  Custom Joiners (jdk 25 preview API) for two scope policies and a benchmark that
+  measures how fast the losing subtasks are cancelled once the outcome is decided.
+
+    hedged   HedgedJoiner: the first successful subtask decides, the scope is
+             cancelled and its result is returned
+    quorum   QuorumJoiner: the scope is cancelled when n of the m subtasks have
+             succeeded (default n = m / 2 + 1) and their results are returned. If
+             more than m - n fail the quorum cannot be reached any more and the scope
+             is cancelled too.
+
+  Every subtask sleeps a random time between -Dmin_ms and -Dmax_ms (default 5 and 50),
+  so the losers are still sleeping when the outcome is decided. For each fan-out width
+  the benchmark runs -Dtrials=<n> scopes (default 50) and reports the median, p99 and max
+  of the time from the decision (the deciding onComplete call) until
+
+    interrupted   the last loser has seen its InterruptedException
+    terminated    the last subtask thread has finished
+    closed        close() of the scope has returned
+
+  Settings (system properties):
+
+    -Dwidths=2,8,32,128,1024   fan-out widths
+    -Dquorum=<n>               number of successes for the quorum policy
+*/
+
+public class StructuredCancellationBenchmark {
+    // Test Configuration
+    public static String POLICY = "hedged";
+
+    public static final int[] WIDTHS = Arrays.stream(System.getProperty("widths", "2,8,32,128,1024").split(","))
+        .mapToInt(Integer::parseInt).toArray();
+    public static final int TRIALS = Integer.getInteger("trials", 50);
+    public static final int MIN_MS = Integer.getInteger("min_ms", 5);
+    public static final int MAX_MS = Integer.getInteger("max_ms", 50);
+
+    // Latest time a loser saw the interrupt and a subtask thread finished
+    public static final LongAccumulator lastInterruptedNanos = new LongAccumulator(Math::max, 0);
+    public static final LongAccumulator lastTerminatedNanos = new LongAccumulator(Math::max, 0);
+
+    public static void main(String[] args) throws Exception {
+        // Process arguments
+        if (args.length != 1) {
+            log("Wrong number of arguments");
+            log("Usage: <hedged|quorum>");
+            System.exit(1);
+        }
+        POLICY = args[0];
+
+        for (int width : WIDTHS) {
+            long[] interrupted = new long[TRIALS];
+            long[] terminated = new long[TRIALS];
+            long[] closed = new long[TRIALS];
+            for (int t = 0; t < TRIALS; t++) {
+                long[] r = testEntry(width);
+                interrupted[t] = r[0];
+                terminated[t] = r[1];
+                closed[t] = r[2];
+            }
+            log(String.format("%s: width %4d: interrupted %s, terminated %s, closed %s (us after decision)",
+                              POLICY, width, stats(interrupted), stats(terminated), stats(closed)));
+        }
+    }
+
+    // Returns the times from the decision to the last interrupt, the last thread termination
+    // and the end of close() in us
+    public static long[] testEntry(int width) throws InterruptedException {
+        lastInterruptedNanos.reset();
+        lastTerminatedNanos.reset();
+
+        DecidingJoiner<Integer, ?> joiner = POLICY.equals("hedged") ?
+            new HedgedJoiner<>() :
+            new QuorumJoiner<>(Integer.getInteger("quorum", width / 2 + 1), width);
+        var scope = StructuredTaskScope.open(joiner);
+        try {
+            for (int i = 0; i < width; i++) {
+                int sleepMs = ThreadLocalRandom.current().nextInt(MIN_MS, MAX_MS + 1);
+                scope.fork(() -> sleepThenReturn(Duration.ofMillis(sleepMs), sleepMs));
+            }
+            scope.join();
+        } finally {
+            scope.close();
+        }
+        long closed = System.nanoTime();
+
+        long decided = joiner.decidedNanos();
+        long interrupted = lastInterruptedNanos.get();
+        return new long[] {
+            interrupted == 0 ? 0 : (interrupted - decided) / 1000,
+            (lastTerminatedNanos.get() - decided) / 1000,
+            (closed - decided) / 1000
+        };
+    }
+
+    static int sleepThenReturn(Duration d, int result) throws InterruptedException {
+        try {
+            Thread.sleep(d);
+            return result;
+        } catch (InterruptedException e) {
+            lastInterruptedNanos.accumulate(System.nanoTime());
+            throw e;
+        } finally {
+            lastTerminatedNanos.accumulate(System.nanoTime());
+        }
+    }
+
+    // A Joiner that cancels the scope as soon as the outcome is known and records when
+    // that was. onComplete is called concurrently by the threads of the completing subtasks.
+    static abstract class DecidingJoiner<T, R> implements Joiner<T, R> {
+        private volatile long decidedNanos;
+
+        protected boolean decide() {
+            decidedNanos = System.nanoTime();
+            return true; // cancels the scope
+        }
+
+        long decidedNanos() {
+            return decidedNanos;
+        }
+    }
+
+    static class HedgedJoiner<T> extends DecidingJoiner<T, T> {
+        private final AtomicReference<Subtask<? extends T>> winner = new AtomicReference<>();
+        private final AtomicReference<Throwable> firstException = new AtomicReference<>();
+
+        @Override
+        public boolean onComplete(Subtask<? extends T> subtask) {
+            if (subtask.state() == Subtask.State.SUCCESS) {
+                return winner.compareAndSet(null, subtask) && decide();
+            }
+            firstException.compareAndSet(null, subtask.exception());
+            return false;
+        }
+
+        @Override
+        public T result() throws Throwable {
+            Subtask<? extends T> w = winner.get();
+            if (w == null) {
+                Throwable ex = firstException.get();
+                throw ex != null ? ex : new IllegalStateException("No subtask completed");
+            }
+            return w.get();
+        }
+    }
+
+    static class QuorumJoiner<T> extends DecidingJoiner<T, List<T>> {
+        private final int quorum;
+        private final int maxFailures;
+        private final ConcurrentLinkedQueue<T> results = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger successes = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        QuorumJoiner(int quorum, int subtasks) {
+            this.quorum = quorum;
+            this.maxFailures = subtasks - quorum;
+        }
+
+        @Override
+        public boolean onComplete(Subtask<? extends T> subtask) {
+            if (subtask.state() == Subtask.State.SUCCESS) {
+                results.add(subtask.get());
+                return successes.incrementAndGet() == quorum && decide();
+            }
+            // The quorum cannot be reached any more
+            return failures.incrementAndGet() == maxFailures + 1 && decide();
+        }
+
+        @Override
+        public List<T> result() {
+            if (successes.get() < quorum) {
+                throw new IllegalStateException("Quorum of " + quorum + " not reached");
+            }
+            return new ArrayList<>(results).subList(0, quorum);
+        }
+    }
+
+    // median / p99 / max
+    static String stats(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int p99 = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.99) - 1);
+        return sorted[sorted.length / 2] + " / " + sorted[p99] + " / " + sorted[sorted.length - 1];
+    }
+
+    static void log(String m) {
+        System.out.println(Thread.currentThread().getName() + ": " + m);
+    }
+}
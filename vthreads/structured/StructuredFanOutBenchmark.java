@@ -0,0 +1,248 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.StructuredTaskScope.Subtask;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+  java --enable-preview --source 25 StructuredFanOutBenchmark.java <sts|cf|executor> <width> <depth>
+
+  Measures the cost of fanning out work like computeWith() in
+  StructuredConcurrencyForkFromParentInChild.java does, with trees of nested scopes.
+  Every inner node of the tree forks <width> children and joins them, the leaves return
+  1. The tree has width + width^2 + ... + width^depth subtasks.
+
+    sts        a StructuredTaskScope per inner node (the Joiner based preview API of
+               jdk 25, StructuredTaskScope.open() with the default Joiner)
+    cf         CompletableFuture.supplyAsync() per child on a virtual thread per task
+               executor and CompletableFuture.allOf() to join
+    executor   ExecutorService.submit() per child on a virtual thread per task executor
+               and Future.get() to join
+
+  Per iteration the time for the whole tree is printed and split into fork (per subtask),
+  join and close (per inner node). cf and executor have no close.
+
+  With -Dmemory=true the leaves park until all subtasks of the tree exist. The used heap
+  after a full GC is then compared with the heap before the tree was built and the
+  difference is reported per subtask. The first iterations report more because the
+  frames of interpreted methods are larger than those of compiled ones.
+
+  Settings (system properties):
+
+    -Diterations=<n>   number of trees to build (default 10)
+    -Dmemory=true      measure memory per subtask instead of time
+
+  Examples
+
+  $ java --enable-preview --source 25 StructuredFanOutBenchmark.java sts 1000 1
+  $ java --enable-preview --source 25 StructuredFanOutBenchmark.java executor 32 2
+  $ java --enable-preview --source 25 -Dmemory=true StructuredFanOutBenchmark.java sts 10 4
+*/
+
+public class StructuredFanOutBenchmark {
+    // Test Configuration
+    public static String KIND = "sts";
+    public static int WIDTH = 1000;
+    public static int DEPTH = 1;
+
+    public static final int ITERATIONS = Integer.getInteger("iterations", 10);
+    public static final boolean MEASURE_MEMORY = Boolean.getBoolean("memory");
+
+    public static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    public static final LongAdder forkNanos = new LongAdder();
+    public static final LongAdder joinNanos = new LongAdder();
+    public static final LongAdder closeNanos = new LongAdder();
+    public static final LongAdder innerNodes = new LongAdder();
+
+    // Used with -Dmemory=true to hold the tree until it is measured
+    public static CountDownLatch leavesParkedLatch;
+    public static CountDownLatch releaseLatch;
+
+    public static void main(String[] args) throws Exception {
+        // Process arguments
+        if (args.length != 3) {
+            log("Wrong number of arguments");
+            log("Usage: <sts|cf|executor> <width> <depth>");
+            System.exit(1);
+        }
+        int i = 0;
+        KIND = args[i++];
+        WIDTH = Integer.parseInt(args[i++]);
+        DEPTH = Integer.parseInt(args[i++]);
+
+        for (int j = 0; j < ITERATIONS; j++) {
+            if (MEASURE_MEMORY) {
+                testMemory();
+            } else {
+                testTime();
+            }
+        }
+        EXECUTOR.shutdown();
+    }
+
+    public static void testTime() throws Exception {
+        forkNanos.reset();
+        joinNanos.reset();
+        closeNanos.reset();
+        innerNodes.reset();
+
+        long start = System.nanoTime();
+        int result = node(DEPTH);
+        long end = System.nanoTime();
+
+        long subtasks = subtaskCount();
+        long nodes = innerNodes.sum();
+        if (result != leafCount()) {
+            throw new IllegalStateException("Wrong result " + result);
+        }
+        log(String.format(Locale.ROOT, "%s: width %d depth %d: %d subtasks in %.1f ms (%.2f us/subtask),"
+                          + " fork %.2f us/subtask, join %.1f us/node, close %.1f us/node",
+                          KIND, WIDTH, DEPTH, subtasks, (end - start) / 1e6, (end - start) / 1e3 / subtasks,
+                          forkNanos.sum() / 1e3 / subtasks, joinNanos.sum() / 1e3 / nodes,
+                          closeNanos.sum() / 1e3 / nodes));
+    }
+
+    public static void testMemory() throws Exception {
+        leavesParkedLatch = new CountDownLatch((int) leafCount());
+        releaseLatch = new CountDownLatch(1);
+
+        System.gc();
+        long before = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        Thread root = Thread.ofVirtual().start(() -> {
+                try {
+                    node(DEPTH);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        leavesParkedLatch.await();
+        System.gc();
+        long after = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        releaseLatch.countDown();
+        root.join();
+
+        long subtasks = subtaskCount();
+        log(String.format(Locale.ROOT, "%s: width %d depth %d: %d subtasks, heap +%d KB, %d bytes/subtask",
+                          KIND, WIDTH, DEPTH, subtasks, (after - before) / 1024, (after - before) / subtasks));
+    }
+
+    public static int node(int depth) throws Exception {
+        if (depth == 0) {
+            return leaf();
+        }
+        innerNodes.increment();
+        return switch (KIND) {
+        case "sts" -> stsNode(depth);
+        case "cf" -> cfNode(depth);
+        case "executor" -> executorNode(depth);
+        default -> throw new IllegalArgumentException("Unknown kind: " + KIND);
+        };
+    }
+
+    public static int stsNode(int depth) throws InterruptedException {
+        StructuredTaskScope<Integer, Void> scope = StructuredTaskScope.open();
+        try {
+            long t0 = System.nanoTime();
+            List<Subtask<Integer>> subtasks = new ArrayList<>(WIDTH);
+            for (int i = 0; i < WIDTH; i++) {
+                subtasks.add(scope.fork(() -> node(depth - 1)));
+            }
+            long t1 = System.nanoTime();
+            scope.join();
+            long t2 = System.nanoTime();
+            forkNanos.add(t1 - t0);
+            joinNanos.add(t2 - t1);
+
+            int sum = 0;
+            for (Subtask<Integer> subtask : subtasks) {
+                sum += subtask.get();
+            }
+            return sum;
+        } finally {
+            long t3 = System.nanoTime();
+            scope.close();
+            closeNanos.add(System.nanoTime() - t3);
+        }
+    }
+
+    public static int cfNode(int depth) {
+        long t0 = System.nanoTime();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(WIDTH);
+        for (int i = 0; i < WIDTH; i++) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return node(depth - 1);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }, EXECUTOR));
+        }
+        long t1 = System.nanoTime();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        long t2 = System.nanoTime();
+        forkNanos.add(t1 - t0);
+        joinNanos.add(t2 - t1);
+
+        int sum = 0;
+        for (CompletableFuture<Integer> future : futures) {
+            sum += future.join();
+        }
+        return sum;
+    }
+
+    public static int executorNode(int depth) throws InterruptedException, ExecutionException {
+        long t0 = System.nanoTime();
+        List<Future<Integer>> futures = new ArrayList<>(WIDTH);
+        for (int i = 0; i < WIDTH; i++) {
+            futures.add(EXECUTOR.submit(() -> node(depth - 1)));
+        }
+        long t1 = System.nanoTime();
+        int sum = 0;
+        for (Future<Integer> future : futures) {
+            sum += future.get();
+        }
+        long t2 = System.nanoTime();
+        forkNanos.add(t1 - t0);
+        joinNanos.add(t2 - t1);
+        return sum;
+    }
+
+    public static int leaf() throws InterruptedException {
+        if (MEASURE_MEMORY) {
+            leavesParkedLatch.countDown();
+            releaseLatch.await();
+        }
+        return 1;
+    }
+
+    static long leafCount() {
+        long leaves = 1;
+        for (int d = 0; d < DEPTH; d++) {
+            leaves *= WIDTH;
+        }
+        return leaves;
+    }
+
+    static long subtaskCount() {
+        long subtasks = 0;
+        long level = 1;
+        for (int d = 0; d < DEPTH; d++) {
+            level *= WIDTH;
+            subtasks += level;
+        }
+        return subtasks;
+    }
+
+    static void log(String m) {
+        System.out.println(Thread.currentThread().getName() + ": " + m);
+    }
+}
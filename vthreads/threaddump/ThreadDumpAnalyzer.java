@@ -0,0 +1,459 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+  Summarizes a thread dump produced by
+
+    jcmd <pid> Thread.dump_to_file [-format=json] <file>
+
+  With 100K virtual threads such a dump has millions of lines. The analyzer reads it
+  sequentially, one thread at a time, and keeps only one entry per distinct stack. Memory
+  use therefore depends on the number of distinct stacks, not on the number of threads.
+
+  $ java ThreadDumpAnalyzer.java ../clinit/TestClassInit_thread_dump.txt
+  $ java -Dtop=5 -Dframes=8 ThreadDumpAnalyzer.java dump.json
+
+  Both formats are detected automatically. The plain text format is understood as written
+  by JDK 21 (frames only) and by JDK 25 (state, "at" frames and lock lines). Lines starting
+  with "# " like the Hi-lock annotations of the checked-in dumps are ignored.
+
+  The report has
+
+    - the number of threads per state and kind (platform/virtual)
+    - the groups of threads of the same kind with identical stacks, largest first, with
+      the states in the group, what the threads are parked on / blocked on and whether
+      they are in <clinit>. Threads without frames are grouped by kind and state.
+    - virtual threads that are pinned, i.e. occupy a carrier while waiting. These are
+      threads parked in VirtualThread.parkOnCarrierThread and mounted threads whose top
+      frame is an application frame instead of a park or yield point. The latter are
+      blocked entering a monitor or waiting for the initialization of a class by another
+      thread (the VM waits below the calling frame, there is no <clinit> frame), or are
+      simply running. In JSON dumps that have a "carrier" field the carrier is named.
+    - carrier threads and how many of them have a virtual thread mounted
+
+  Settings (system properties):
+
+    -Dtop=<n>             number of stack groups in the report (default 20)
+    -Dframes=<n>          number of frames printed per group (default 15)
+    -Dexpect_pinned=<n>   exit code 1 if the number of pinned virtual threads differs
+
+  Check of the pinned detection against the checked-in dumps: the 9 threads waiting for
+  ServiceEndpoint.<clinit> plus the one in it parked on its carrier, and the 3 threads
+  blocked entering the synchronized block plus the one holding it in consumeCPU.
+
+  $ java -Dexpect_pinned=10 ThreadDumpAnalyzer.java ../clinit/TestClassInit_thread_dump.txt
+  $ java -Dexpect_pinned=4 ThreadDumpAnalyzer.java ../locking_stackdump/out_synchronized.txt
+*/
+
+public class ThreadDumpAnalyzer {
+
+    public static final int TOP = Integer.getInteger("top", 20);
+    public static final Integer EXPECT_PINNED = Integer.getInteger("expect_pinned");
+    public static final int FRAMES = Integer.getInteger("frames", 15);
+    public static final int MAX_LOCKS_PER_GROUP = 5;
+    public static final int MAX_PINNED_LISTED = 20;
+
+    static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            OUT.println("Usage: ThreadDumpAnalyzer <thread dump file>");
+            System.exit(1);
+        }
+        Report report = new Report();
+        try (BufferedReader in = Files.newBufferedReader(Path.of(args[0]))) {
+            in.mark(1024);
+            int c;
+            do {
+                c = in.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            in.reset();
+            if (c == '{') {
+                new JsonDumpParser(in, report).parse();
+            } else {
+                parseText(in, report);
+            }
+        }
+        report.print();
+        if (EXPECT_PINNED != null && report.pinnedCount != EXPECT_PINNED) {
+            OUT.println("Expected " + EXPECT_PINNED + " pinned virtual threads, found " + report.pinnedCount);
+            System.exit(1);
+        }
+    }
+
+    // One thread of the dump. Only the current thread is kept in memory.
+    static class ThreadInfo {
+        String tid = "";
+        String name = "";
+        String state = "UNKNOWN";
+        boolean virtual;
+        String carrier;
+        String blocker;
+        final List<String> frames = new ArrayList<>();
+
+        boolean isVirtual() {
+            return virtual || frames.stream().anyMatch(f -> f.contains("java.lang.VirtualThread.run("));
+        }
+
+        boolean isPinned() {
+            return pinReason() != null;
+        }
+
+        // Why a virtual thread occupies its carrier, null if it does not
+        String pinReason() {
+            if (!isVirtual() || frames.isEmpty()) return null;
+            if (frames.stream().anyMatch(f -> f.contains("VirtualThread.parkOnCarrierThread"))) {
+                return "parked on carrier";
+            }
+            // An unmounted thread has the park or yield frames of the JDK on top
+            if (isJdkFrame(frames.get(0))) return null;
+            if (state.equals("BLOCKED")) return "blocked on monitor";
+            return "mounted in application frame (monitor, class init or running)";
+        }
+
+        static boolean isJdkFrame(String frame) {
+            return frame.startsWith("java.") || frame.startsWith("jdk.");
+        }
+
+        boolean inClinit() {
+            return frames.stream().anyMatch(f -> f.contains(".<clinit>("));
+        }
+
+        boolean isCarrier() {
+            return !isVirtual() && (name.matches("ForkJoinPool-\\d+-worker-\\d+") || carriesVirtualThread());
+        }
+
+        boolean carriesVirtualThread() {
+            return !frames.isEmpty() && frames.get(0).contains("Continuation.run");
+        }
+
+        // First frame that is not in a JDK module
+        String appFrame() {
+            return frames.stream().filter(f -> !isJdkFrame(f))
+                .findFirst().orElse(frames.isEmpty() ? "<no frames>" : frames.get(0));
+        }
+    }
+
+    // Threads with identical stacks
+    static class Group {
+        final String stack;
+        long count;
+        long virtualCount;
+        long clinitCount;
+        long pinnedCount;
+        final Map<String, Long> states = new TreeMap<>();
+        final Map<String, Long> blockers = new LinkedHashMap<>();
+        String sampleName;
+
+        Group(String stack) {
+            this.stack = stack;
+        }
+
+        void add(ThreadInfo t) {
+            count++;
+            if (t.isVirtual()) virtualCount++;
+            if (t.inClinit()) clinitCount++;
+            if (t.isPinned()) pinnedCount++;
+            states.merge(t.state, 1L, Long::sum);
+            if (t.blocker != null) {
+                // Keep the number of distinct lock objects per group bounded
+                String key = blockers.containsKey(t.blocker) || blockers.size() < MAX_LOCKS_PER_GROUP ?
+                    t.blocker : "<other>";
+                blockers.merge(key, 1L, Long::sum);
+            }
+            if (sampleName == null) {
+                sampleName = t.name;
+            }
+        }
+    }
+
+    static class Report {
+        String header = "";
+        long threads;
+        final Map<String, Long> platformStates = new TreeMap<>();
+        final Map<String, Long> virtualStates = new TreeMap<>();
+        final Map<String, Group> groups = new HashMap<>();
+        final List<String> pinned = new ArrayList<>();
+        long pinnedCount;
+        long carriers;
+        long carriersBusy;
+
+        void addHeader(String line) {
+            header += line + "\n";
+        }
+
+        void add(ThreadInfo t) {
+            threads++;
+            (t.isVirtual() ? virtualStates : platformStates).merge(t.state, 1L, Long::sum);
+            String stack = String.join("\n", t.frames);
+            // Virtual and platform threads are never grouped together. Threads without
+            // frames (e.g. unstarted or just terminated) are also told apart by state.
+            String key = (t.isVirtual() ? "virtual" : "platform") + (stack.isEmpty() ? " " + t.state : "")
+                + "\n" + stack;
+            groups.computeIfAbsent(key, k -> new Group(stack)).add(t);
+            if (t.isPinned()) {
+                pinnedCount++;
+                if (pinned.size() < MAX_PINNED_LISTED) {
+                    pinned.add("#" + t.tid + (t.carrier != null ? " on carrier #" + t.carrier : "")
+                               + " " + t.state + " " + t.pinReason() + " at " + t.appFrame()
+                               + (t.blocker != null ? " parked on " + t.blocker : ""));
+                }
+            }
+            if (t.isCarrier()) {
+                carriers++;
+                if (t.carriesVirtualThread()) carriersBusy++;
+            }
+        }
+
+        void print() {
+            OUT.print(header);
+            OUT.println("Threads: " + threads);
+            OUT.println("  platform " + sum(platformStates) + " " + platformStates);
+            OUT.println("  virtual  " + sum(virtualStates) + " " + virtualStates);
+            OUT.println("Carriers: " + carriers + ", " + carriersBusy + " with a mounted virtual thread");
+            OUT.println("Pinned virtual threads (occupying a carrier): " + pinnedCount);
+            pinned.forEach(p -> OUT.println("  " + p));
+            if (pinnedCount > pinned.size()) {
+                OUT.println("  ... " + (pinnedCount - pinned.size()) + " more");
+            }
+            OUT.println();
+            OUT.println("Stack groups: " + groups.size() + " (top " + Math.min(TOP, groups.size()) + ")");
+            groups.values().stream()
+                .sorted(Comparator.comparingLong((Group g) -> g.count).reversed())
+                .limit(TOP)
+                .forEach(this::printGroup);
+        }
+
+        void printGroup(Group g) {
+            OUT.println();
+            StringBuilder sb = new StringBuilder();
+            sb.append(g.count).append(" threads (").append(g.virtualCount).append(" virtual) ").append(g.states);
+            sb.append(", e.g. \"").append(g.sampleName).append("\"");
+            if (g.clinitCount > 0) sb.append(", ").append(g.clinitCount).append(" in <clinit>");
+            if (g.pinnedCount > 0) sb.append(", ").append(g.pinnedCount).append(" PINNED");
+            OUT.println(sb);
+            g.blockers.forEach((b, n) -> OUT.println("    " + n + " parked/blocked on " + b));
+            if (g.stack.isEmpty()) {
+                OUT.println("      <no frames>");
+                return;
+            }
+            String[] frames = g.stack.split("\n");
+            for (int i = 0; i < Math.min(FRAMES, frames.length); i++) {
+                OUT.println("      " + frames[i]);
+            }
+            if (frames.length > FRAMES) {
+                OUT.println("      ... " + (frames.length - FRAMES) + " more frames");
+            }
+        }
+
+        static long sum(Map<String, Long> m) {
+            return m.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+
+    //// Plain text format
+
+    // JDK 21:  #45 "" virtual              JDK 25:  #45 "" virtual WAITING 2025-11-12T09:22:18.144460Z
+    //                java.base/...                      at java.base/...
+    //                                                   - parking to wait for <java.util.concurrent...@5ab20e71>
+    static void parseText(BufferedReader in, Report report) throws IOException {
+        ThreadInfo t = null;
+        boolean inHeader = true;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("# ")) continue;
+            if (line.startsWith("#")) {
+                if (t != null) report.add(t);
+                inHeader = false;
+                t = parseTextHeader(line);
+                continue;
+            }
+            String s = line.strip();
+            if (inHeader) {
+                if (!s.isEmpty()) report.addHeader(s);
+                continue;
+            }
+            if (s.isEmpty() || t == null) continue;
+            if (s.startsWith("- ")) {
+                int lt = s.indexOf('<');
+                if (lt >= 0 && (s.startsWith("- parking to wait for") || s.startsWith("- waiting to lock")
+                                || s.startsWith("- waiting on"))) {
+                    t.blocker = s.substring(lt + 1, s.endsWith(">") ? s.length() - 1 : s.length());
+                }
+                continue;
+            }
+            t.frames.add(s.startsWith("at ") ? s.substring(3) : s);
+        }
+        if (t != null) report.add(t);
+    }
+
+    static ThreadInfo parseTextHeader(String line) {
+        ThreadInfo t = new ThreadInfo();
+        int q1 = line.indexOf('"');
+        int q2 = line.lastIndexOf('"');
+        t.tid = line.substring(1, q1 > 0 ? q1 : line.length()).strip();
+        if (q1 >= 0 && q2 > q1) {
+            t.name = line.substring(q1 + 1, q2);
+        }
+        String rest = q2 > q1 && q1 >= 0 ? line.substring(q2 + 1).strip() : "";
+        for (String word : rest.split("\\s+")) {
+            if (word.equals("virtual")) {
+                t.virtual = true;
+            } else if (word.matches("[A-Z_]+")) {
+                t.state = word;
+            }
+        }
+        return t;
+    }
+
+    //// JSON format
+
+    // Minimal streaming JSON parser. Objects and arrays are materialized except for the
+    // elements of "threads" arrays which are handed to the report one by one.
+    static class JsonDumpParser {
+        final PushbackReader in;
+        final Report report;
+
+        JsonDumpParser(Reader in, Report report) {
+            this.in = new PushbackReader(in, 1);
+            this.report = report;
+        }
+
+        void parse() throws IOException {
+            Object dump = value(null);
+            if (dump instanceof Map<?, ?> root && root.get("threadDump") instanceof Map<?, ?> td) {
+                for (String key : List.of("processId", "time", "runtimeVersion")) {
+                    if (td.get(key) != null) report.addHeader(td.get(key).toString());
+                }
+            }
+        }
+
+        Object value(String key) throws IOException {
+            int c = skipWhitespace();
+            switch (c) {
+            case '{': return object();
+            case '[': return array(key);
+            case '"': return string();
+            default:
+                StringBuilder sb = new StringBuilder().append((char) c);
+                while ((c = in.read()) != -1 && ",]} \t\r\n".indexOf(c) < 0) {
+                    sb.append((char) c);
+                }
+                if (c != -1) in.unread(c);
+                String literal = sb.toString();
+                return literal.equals("null") ? null : literal;
+            }
+        }
+
+        Map<String, Object> object() throws IOException {
+            Map<String, Object> map = new LinkedHashMap<>();
+            int c = skipWhitespace();
+            if (c == '}') return map;
+            in.unread(c);
+            while (true) {
+                expect('"');
+                String key = string();
+                expect(':');
+                map.put(key, value(key));
+                c = skipWhitespace();
+                if (c == '}') return map;
+                if (c != ',') throw error(c);
+            }
+        }
+
+        List<Object> array(String key) throws IOException {
+            boolean streamed = "threads".equals(key);
+            List<Object> list = new ArrayList<>();
+            int c = skipWhitespace();
+            if (c == ']') return list;
+            in.unread(c);
+            while (true) {
+                Object v = value(null);
+                if (streamed) {
+                    if (v instanceof Map<?, ?> m) report.add(threadInfo(m));
+                } else {
+                    list.add(v);
+                }
+                c = skipWhitespace();
+                if (c == ']') return list;
+                if (c != ',') throw error(c);
+            }
+        }
+
+        String string() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '"') {
+                if (c == -1) throw error(c);
+                if (c == '\\') {
+                    c = in.read();
+                    switch (c) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) hex[i] = (char) in.read();
+                        sb.append((char) Integer.parseInt(new String(hex), 16));
+                        break;
+                    default: sb.append((char) c); // \" \\ \/
+                    }
+                } else {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+
+        int skipWhitespace() throws IOException {
+            int c;
+            do {
+                c = in.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            return c;
+        }
+
+        void expect(int expected) throws IOException {
+            int c = skipWhitespace();
+            if (c != expected) throw error(c);
+        }
+
+        IOException error(int c) {
+            return new IOException("Unexpected " + (c == -1 ? "end of input" : "'" + (char) c + "'"));
+        }
+
+        // JDK 21 dumps have tid, name and stack. Later versions add state, virtual, carrier
+        // and the objects a thread is parked/blocked on or waiting on.
+        static ThreadInfo threadInfo(Map<?, ?> m) {
+            ThreadInfo t = new ThreadInfo();
+            t.tid = String.valueOf(m.get("tid"));
+            t.name = String.valueOf(m.get("name"));
+            if (m.get("state") != null) t.state = m.get("state").toString();
+            t.virtual = "true".equals(String.valueOf(m.get("virtual")));
+            if (m.get("carrier") != null) t.carrier = m.get("carrier").toString();
+            for (String key : List.of("parkBlocker", "blockedOn", "waitingOn")) {
+                Object b = m.get(key);
+                if (b instanceof Map<?, ?> bm) b = bm.get("object");
+                if (b != null) t.blocker = b.toString();
+            }
+            if (m.get("stack") instanceof List<?> stack) {
+                stack.forEach(f -> t.frames.add(String.valueOf(f)));
+            }
+            return t;
+        }
+    }
+}